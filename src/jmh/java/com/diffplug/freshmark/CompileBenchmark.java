@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.diffplug.common.base.Consumers;
+
+/** End-to-end {@link FreshMark#compile}, including the script engine. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CompileBenchmark {
+	@Param({"1", "30"})
+	public int sections;
+
+	@Param({"10", "1000"})
+	public int linesPerBody;
+
+	private String document;
+	private FreshMark warmFreshMark;
+
+	@Setup
+	public void setup() {
+		document = SyntheticDocument.document(sections, linesPerBody);
+		warmFreshMark = new FreshMark(SyntheticDocument.properties(), Consumers.doNothing());
+	}
+
+	/** A FreshMark which has already compiled documents, so its engine and caches are warm. */
+	@Benchmark
+	public String compileWarm() throws ScriptException {
+		return warmFreshMark.compile(document);
+	}
+
+	/** A brand-new FreshMark for every document, which pays for engine startup every time. */
+	@Benchmark
+	public String compileCold() throws ScriptException {
+		return new FreshMark(SyntheticDocument.properties(), Consumers.doNothing()).compile(document);
+	}
+}
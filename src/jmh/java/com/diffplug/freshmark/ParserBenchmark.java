@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.diffplug.common.base.Consumers;
+
+/** Splitting a document into body and tag chunks, without compiling anything. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ParserBenchmark {
+	@Param({"10", "100"})
+	public int sections;
+
+	@Param({"10", "1000"})
+	public int linesPerBody;
+
+	private Parser parser;
+	private String document;
+
+	@Setup
+	public void setup() {
+		parser = new FreshMark(SyntheticDocument.properties(), Consumers.doNothing()).parser;
+		document = SyntheticDocument.document(sections, linesPerBody);
+	}
+
+	@Benchmark
+	public void bodyAndTags(Blackhole blackhole) throws ScriptException {
+		parser.bodyAndTags(document, (idx, body) -> blackhole.consume(body), (idx, tag) -> blackhole.consume(tag));
+	}
+
+	@Benchmark
+	public String compileWithIdentity() throws ScriptException {
+		return parser.compile(document, (section, script, input) -> input);
+	}
+}
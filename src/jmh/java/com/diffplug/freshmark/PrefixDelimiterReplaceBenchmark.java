@@ -0,0 +1,71 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** The {@code prefixDelimiterReplace} built-in, on bodies of increasing size. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PrefixDelimiterReplaceBenchmark {
+	@Param({"10", "1000", "100000"})
+	public int lines;
+
+	private String input;
+
+	@Setup
+	public void setup() {
+		input = SyntheticDocument.body(lines);
+	}
+
+	@Benchmark
+	public String prefixDelimiterReplace() {
+		return FreshMark.prefixDelimiterReplace(input, PREFIX, DELIMITER, REPLACEMENT);
+	}
+
+	/** The original regex implementation, as a baseline. */
+	@Benchmark
+	public String prefixDelimiterReplaceRegex() {
+		StringBuilder builder = new StringBuilder(input.length() * 3 / 2);
+		int lastElement = 0;
+		Pattern pattern = Pattern.compile("(.*?" + Pattern.quote(PREFIX) + ")(.*?)(" + Pattern.quote(DELIMITER) + ")", Pattern.DOTALL);
+		Matcher matcher = pattern.matcher(input);
+		while (matcher.find()) {
+			builder.append(matcher.group(1));
+			builder.append(REPLACEMENT);
+			builder.append(matcher.group(3));
+			lastElement = matcher.end();
+		}
+		builder.append(input.substring(lastElement));
+		return builder.toString();
+	}
+
+	private static final String PREFIX = "https://diffplug.github.io/freshmark/javadoc/";
+	private static final String DELIMITER = "/";
+	private static final String REPLACEMENT = "1.3.1";
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Generates synthetic FreshMark documents for the benchmarks. */
+class SyntheticDocument {
+	/** The properties which the generated sections refer to. */
+	static Map<String, String> properties() {
+		Map<String, String> properties = new HashMap<>();
+		properties.put("org", "diffplug");
+		properties.put("name", "freshmark");
+		properties.put("group", "com.diffplug.freshmark");
+		properties.put("stable", "1.3.1");
+		properties.put("version", "1.4.0-SNAPSHOT");
+		return properties;
+	}
+
+	/** A script which updates javadoc links, like the ones in real READMEs. */
+	static final String JAVADOC_SCRIPT = "output = prefixDelimiterReplace(input, 'https://{{org}}.github.io/{{name}}/javadoc/', '/', '{{stable}}')\n";
+
+	/** A script which generates shields, like the ones in real READMEs. */
+	static final String SHIELDS_SCRIPT = "output = [\n" +
+			"\tlink(shield('Maven artifact', 'mavenCentral', '{{group}}:{{name}}', 'blue'), 'https://bintray.com/{{org}}/opensource/{{name}}/view'),\n" +
+			"\tlink(shield('Latest version', 'latest', '{{stable}}', 'blue'), 'https://github.com/{{org}}/{{name}}/releases/latest'),\n" +
+			"\tlink(shield('Changelog', 'changelog', '{{version}}', 'brightgreen'), 'CHANGES.md')\n" +
+			"\t].join('\\n')\n";
+
+	/** A line of body text with a javadoc link in it. */
+	static final String BODY_LINE = "Call [FreshMark.compile()](https://diffplug.github.io/freshmark/javadoc/1.0/com/diffplug/freshmark/FreshMark.html) to compile.\n";
+
+	/** Returns a body made of the given number of lines. */
+	static String body(int lines) {
+		StringBuilder builder = new StringBuilder(lines * BODY_LINE.length());
+		for (int i = 0; i < lines; ++i) {
+			builder.append(BODY_LINE);
+		}
+		return builder.toString();
+	}
+
+	/** Returns a document with the given number of sections, each separated by and containing {@code linesPerBody} lines. */
+	static String document(int sections, int linesPerBody) {
+		String body = body(linesPerBody);
+		StringBuilder builder = new StringBuilder();
+		builder.append(body);
+		for (int i = 0; i < sections; ++i) {
+			String name = "section" + i;
+			String script = i % 2 == 0 ? JAVADOC_SCRIPT : SHIELDS_SCRIPT;
+			builder.append("<!---freshmark ").append(name).append('\n');
+			builder.append(script);
+			builder.append("-->\n");
+			builder.append(body);
+			builder.append("<!---freshmark /").append(name).append(" -->\n");
+			builder.append(body);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Mustache templating of a section script. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TemplateBenchmark {
+	/** How many times the shields script is repeated within the template. */
+	@Param({"1", "100"})
+	public int repeats;
+
+	private Map<String, String> properties;
+	private String template;
+	private MustacheTemplate compiled;
+
+	@Setup
+	public void setup() {
+		properties = SyntheticDocument.properties();
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < repeats; ++i) {
+			builder.append(SyntheticDocument.SHIELDS_SCRIPT);
+		}
+		template = builder.toString();
+		compiled = MustacheTemplate.compile(template);
+	}
+
+	@Benchmark
+	public String mustacheTemplate() {
+		return CommentScript.mustacheTemplate(template, properties::get);
+	}
+
+	@Benchmark
+	public String mustacheTemplatePrecompiled() {
+		return compiled.render(properties::get);
+	}
+}
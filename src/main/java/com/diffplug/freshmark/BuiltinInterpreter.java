@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs the simplest FreshMark scripts without a script engine.
+ * <p>
+ * Supports a single {@code output = expression;} statement, where the expression is built from
+ * string literals, {@code input}, string-valued properties, the built-in functions
+ * ({@code link}, {@code image}, {@code shield}, and {@code prefixDelimiterReplace}),
+ * {@code +}, parentheses, and {@code [...].join(separator)}.  That covers most of the scripts
+ * in the wild, with exactly the same result as javascript.  Anything else (comments, numbers,
+ * unknown identifiers, several statements, etc.) returns null so that the script is run by a
+ * real engine, which also reports any errors.
+ */
+class BuiltinInterpreter {
+	/** The functions which are built-in to every FreshMark engine. */
+	static final List<String> BUILTINS = Arrays.asList("link", "image", "shield", "prefixDelimiterReplace");
+
+	/** The properties which the engine would bind as variables. */
+	private final Map<String, ?> properties;
+
+	/** The given properties must already be filtered down to the ones which the engine would bind. */
+	BuiltinInterpreter(Map<String, ?> properties) {
+		this.properties = properties;
+	}
+
+	/** Returns the output of the given program, or null if it needs a real script engine. */
+	String eval(String program, String input) {
+		if (input == null) {
+			return null;
+		}
+		return new Evaluation(program, input).program();
+	}
+
+	/** A single pass over a program, where every method returns null if the program isn't supported. */
+	private class Evaluation {
+		final String program;
+		final String input;
+		int pos;
+
+		Evaluation(String program, String input) {
+			this.program = program;
+			this.input = input;
+		}
+
+		/** {@code output = expression;} */
+		String program() {
+			skipWhitespace();
+			if (!"output".equals(identifier())) {
+				return null;
+			}
+			skipWhitespace();
+			if (!consume('=') || peek() == '=') {
+				return null;
+			}
+			String output = expression();
+			if (output == null) {
+				return null;
+			}
+			skipWhitespace();
+			consume(';');
+			skipWhitespace();
+			return pos == program.length() ? output : null;
+		}
+
+		/** {@code term + term + ...} */
+		String expression() {
+			skipWhitespace();
+			String value = term();
+			if (value == null) {
+				return null;
+			}
+			StringBuilder concatenated = null;
+			while (true) {
+				skipWhitespace();
+				// += and ++ aren't concatenation
+				if (peek() != '+' || peekAt(pos + 1) == '+' || peekAt(pos + 1) == '=') {
+					break;
+				}
+				++pos;
+				skipWhitespace();
+				String next = term();
+				if (next == null) {
+					return null;
+				}
+				if (concatenated == null) {
+					concatenated = new StringBuilder(value);
+				}
+				concatenated.append(next);
+			}
+			return concatenated == null ? value : concatenated.toString();
+		}
+
+		/** A literal, a variable, a function call, a parenthesized expression, or an array which is joined. */
+		String term() {
+			char c = peek();
+			if (c == '\'' || c == '"') {
+				return stringLiteral(c);
+			} else if (c == '(') {
+				++pos;
+				String value = expression();
+				skipWhitespace();
+				return value != null && consume(')') ? value : null;
+			} else if (c == '[') {
+				return joinedArray();
+			}
+			String name = identifier();
+			if (name == null) {
+				return null;
+			}
+			skipWhitespace();
+			if (peek() == '(') {
+				++pos;
+				List<String> args = arguments(')');
+				return args == null ? null : call(name, args);
+			} else {
+				return variable(name);
+			}
+		}
+
+		/** {@code [a, b, c].join(separator)}, with a comma separator by default. */
+		String joinedArray() {
+			++pos;
+			List<String> elements = arguments(']');
+			if (elements == null) {
+				return null;
+			}
+			skipWhitespace();
+			if (!consume('.') || !"join".equals(identifier())) {
+				return null;
+			}
+			skipWhitespace();
+			if (!consume('(')) {
+				return null;
+			}
+			List<String> separator = arguments(')');
+			if (separator == null || separator.size() > 1) {
+				return null;
+			}
+			return String.join(separator.isEmpty() ? "," : separator.get(0), elements);
+		}
+
+		/** A comma-separated list of expressions up to the given close char (which may be preceded by a trailing comma in an array). */
+		List<String> arguments(char close) {
+			List<String> values = new ArrayList<>();
+			skipWhitespace();
+			if (consume(close)) {
+				return values;
+			}
+			while (true) {
+				String value = expression();
+				if (value == null) {
+					return null;
+				}
+				values.add(value);
+				skipWhitespace();
+				if (consume(close)) {
+					return values;
+				} else if (!consume(',')) {
+					return null;
+				}
+				skipWhitespace();
+				if (close == ']' && consume(close)) {
+					return values;
+				}
+			}
+		}
+
+		/** Calls a built-in function. */
+		String call(String name, List<String> args) {
+			// calling a java function with the wrong number of args is an error, so the engine can report it
+			switch (name) {
+			case "link":
+				return args.size() == 2 ? FreshMark.link(args.get(0), args.get(1)) : null;
+			case "image":
+				return args.size() == 2 ? FreshMark.image(args.get(0), args.get(1)) : null;
+			case "shield":
+				return args.size() == 4 ? FreshMark.shield(args.get(0), args.get(1), args.get(2), args.get(3)) : null;
+			case "prefixDelimiterReplace":
+				return args.size() == 4 ? FreshMark.prefixDelimiterReplace(args.get(0), args.get(1), args.get(2), args.get(3)) : null;
+			default:
+				return null;
+			}
+		}
+
+		/** The value of {@code input} or a string property. */
+		String variable(String name) {
+			if (name.equals("input")) {
+				return input;
+			}
+			Object value = properties.get(name);
+			return value instanceof String ? (String) value : null;
+		}
+
+		/** A single or double quoted string. */
+		String stringLiteral(char quote) {
+			++pos;
+			StringBuilder builder = new StringBuilder();
+			while (pos < program.length()) {
+				char c = program.charAt(pos++);
+				if (c == quote) {
+					return builder.toString();
+				} else if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029') {
+					// unterminated
+					return null;
+				} else if (c != '\\') {
+					builder.append(c);
+				} else if (pos == program.length()) {
+					return null;
+				} else {
+					char escaped = program.charAt(pos++);
+					switch (escaped) {
+					case 'n':
+						builder.append('\n');
+						break;
+					case 't':
+						builder.append('\t');
+						break;
+					case 'r':
+						builder.append('\r');
+						break;
+					case 'b':
+						builder.append('\b');
+						break;
+					case 'f':
+						builder.append('\f');
+						break;
+					case 'v':
+						builder.append('\013');
+						break;
+					case '\'':
+					case '"':
+					case '\\':
+					case '/':
+						builder.append(escaped);
+						break;
+					case '\n':
+						// a line continuation
+						break;
+					case 'x':
+						if (!hex(builder, 2)) {
+							return null;
+						}
+						break;
+					case 'u':
+						if (!hex(builder, 4)) {
+							return null;
+						}
+						break;
+					default:
+						// octal escapes and the like are left to the engine
+						return null;
+					}
+				}
+			}
+			return null;
+		}
+
+		/** Appends the char whose value is given by the next {@code digits} hex digits. */
+		boolean hex(StringBuilder builder, int digits) {
+			if (pos + digits > program.length()) {
+				return false;
+			}
+			int value = 0;
+			for (int i = 0; i < digits; ++i) {
+				int digit = Character.digit(program.charAt(pos++), 16);
+				if (digit < 0) {
+					return false;
+				}
+				value = value * 16 + digit;
+			}
+			builder.append((char) value);
+			return true;
+		}
+
+		/** A javascript identifier (restricted to ascii), or null if there isn't one here. */
+		String identifier() {
+			int start = pos;
+			while (pos < program.length()) {
+				char c = program.charAt(pos);
+				boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == '$' || (pos > start && c >= '0' && c <= '9');
+				if (!valid) {
+					break;
+				}
+				++pos;
+			}
+			// a non-ascii identifier is left to the engine
+			if (pos == start || (pos < program.length() && program.charAt(pos) > 0x7F)) {
+				return null;
+			}
+			return program.substring(start, pos);
+		}
+
+		void skipWhitespace() {
+			while (pos < program.length() && " \t\n\r".indexOf(program.charAt(pos)) >= 0) {
+				++pos;
+			}
+		}
+
+		boolean consume(char c) {
+			if (peek() == c) {
+				++pos;
+				return true;
+			} else {
+				return false;
+			}
+		}
+
+		char peek() {
+			return peekAt(pos);
+		}
+
+		char peekAt(int idx) {
+			return idx < program.length() ? program.charAt(idx) : '\0';
+		}
+	}
+}
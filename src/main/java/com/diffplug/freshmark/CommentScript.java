@@ -15,10 +15,22 @@
  */
 package com.diffplug.freshmark;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 
@@ -58,40 +70,198 @@ public abstract class CommentScript implements Parser.SectionCompiler {
 	 * delineate and combine comment blocks.
 	 */
 	protected CommentScript(Parser parser) {
+		this(parser, ScriptCache.DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Creates a CommentScript using the given parser, which will
+	 * cache up to {@code scriptCacheSize} compiled scripts per engine.
+	 */
+	protected CommentScript(Parser parser, int scriptCacheSize) {
+		this(parser, new ScriptCache(scriptCacheSize));
+	}
+
+	/** Creates a CommentScript which shares the given cache of compiled scripts (for CommentScripts which share their engines). */
+	CommentScript(Parser parser, ScriptCache scriptCache) {
 		this.parser = parser;
+		this.scriptCache = scriptCache;
 	}
 
 	/** Parser which splits up the raw document into structured tags which get passed to the compiler. */
 	final Parser parser;
+	/** Compiled form of each templated program, so that repeated sections skip parsing. */
+	final ScriptCache scriptCache;
+	/** Parsed form of each script's mustache template, guarded by itself. */
+	private final LruCache<String, MustacheTemplate> templates = new LruCache<>(ScriptCache.DEFAULT_MAX_SIZE);
 
 	/** Compiles a single section/script/input combo into the appropriate output. */
 	@Override
 	public String compileSection(String section, String script, String input) {
 		return Errors.rethrow().get(() -> {
-			ScriptEngine engine = setupScriptEngine(section);
-
+			// only measure if somebody is listening
+			CompileMetrics.Section metrics = CompileMetrics.current();
+			long start = metrics == null ? 0 : System.nanoTime();
 			// apply the templating engine to the script
 			String templatedProgram = template(section, script);
-			// populate the input data
-			engine.put("input", input);
-			// evaluate the script and get the result
-			engine.eval(templatedProgram);
-			return Check.cast(engine.get("output"), String.class);
+			long templateDone = metrics == null ? 0 : System.nanoTime();
+			if (metrics != null) {
+				metrics.templateNanos = templateDone - start;
+			}
+			// simple scripts might not need an engine at all
+			String direct = compileWithoutEngine(section, templatedProgram, input);
+			if (direct != null) {
+				if (metrics != null) {
+					metrics.interpreted = true;
+					metrics.evalNanos = System.nanoTime() - templateDone;
+				}
+				return direct;
+			}
+			ScriptEngine engine = setupScriptEngine(section);
+			try {
+				long setupDone = metrics == null ? 0 : System.nanoTime();
+				// populate the input data, and clear any output left behind by a previous section
+				engine.put("input", input);
+				engine.getBindings(ScriptContext.ENGINE_SCOPE).remove("output");
+				// evaluate the script (compiling it only if we haven't seen it before) and get the result
+				Map<String, CompiledScript> scriptsOfEngine = compiledScriptsOf(engine);
+				CompiledScript compiled = scriptsOfEngine == null ? null : scriptCache.get(engine, scriptsOfEngine, templatedProgram);
+				if (compiled != null) {
+					compiled.eval();
+				} else {
+					engine.eval(templatedProgram);
+				}
+				if (metrics != null) {
+					metrics.engineSetupNanos = setupDone - templateDone;
+					metrics.evalNanos = System.nanoTime() - setupDone;
+				}
+				return Check.cast(engine.get("output"), String.class);
+			} finally {
+				releaseScriptEngine(engine);
+			}
 		});
 	}
 
+	/** The cache of compiled scripts, whose hit and miss counts show how often sections repeat. */
+	public ScriptCache scriptCache() {
+		return scriptCache;
+	}
+
 	/** Compiles the given input string. Input must contain only unix newlines, output is guaranteed to be the same. */
 	public String compile(String input) throws ScriptException {
 		return parser.compile(input, this);
 	}
 
+	/**
+	 * Compiles from the given reader to the given writer, holding as little of the document in memory as the parser allows.
+	 * Input must contain only unix newlines, output is guaranteed to be the same.  Neither the reader nor the writer is closed.
+	 */
+	public void compile(Reader input, Writer output) throws ScriptException, IOException {
+		parser.compile(input, output, this);
+	}
+
+	/** Parses the given input string, so that it can be compiled many times (see {@link Parser#parse(String)}). Input must contain only unix newlines. */
+	public ParsedDocument parse(String input) throws ScriptException {
+		return parser.parse(input);
+	}
+
+	/** Compiles the given parsed document, which must have been parsed by this CommentScript's parser. */
+	public String compile(ParsedDocument document) throws ScriptException {
+		return parser.compile(document, this);
+	}
+
+	/** Compiles the given parsed document, using the given compiler for each section. */
+	public String compile(ParsedDocument document, Parser.SectionCompiler compiler) throws ScriptException {
+		return parser.compile(document, compiler);
+	}
+
+	/**
+	 * Compiles the given input string, using the given compiler for each section.
+	 * <p>
+	 * The compiler is usually this CommentScript wrapped in a decorator, such as {@link MemoizingSectionCompiler}.
+	 */
+	public String compile(String input, Parser.SectionCompiler compiler) throws ScriptException {
+		return parser.compile(input, compiler);
+	}
+
+	/**
+	 * Compiles the given input string, using the given compiler for each section,
+	 * and passing the timings of the document and each of its sections to the given listener.
+	 */
+	public String compile(String input, Parser.SectionCompiler compiler, CompileMetrics.Listener listener) throws ScriptException {
+		return parser.compile(input, compiler, listener);
+	}
+
+	/**
+	 * Compiles the given input string, using the given compiler for each section, with the sections
+	 * compiled concurrently on the given executor (see {@link Parser#compile(String, Parser.SectionCompiler, CompileMetrics.Listener, Executor)}).
+	 * The listener may be null.
+	 */
+	public String compile(String input, Parser.SectionCompiler compiler, CompileMetrics.Listener listener, Executor executor) throws ScriptException {
+		return parser.compile(input, compiler, listener, executor);
+	}
+
+	/**
+	 * Recompiles a document which has already been compiled, after the given properties changed.
+	 * Only the sections which read one of the changed properties (see {@link #propertiesReadBy})
+	 * are compiled again, and every other section keeps the output which it already has.
+	 */
+	public String recompile(String compiled, Collection<String> changedKeys) throws ScriptException {
+		return parser.compile(compiled, onlySectionsReading(changedKeys, this));
+	}
+
+	/**
+	 * Returns a compiler which passes each section that reads one of the given properties to the given
+	 * compiler, and leaves the input of every other section as it is.  A section without any input is
+	 * always compiled.
+	 */
+	public Parser.SectionCompiler onlySectionsReading(Collection<String> keys, Parser.SectionCompiler compiler) {
+		Set<String> keySet = new HashSet<>(keys);
+		Map<List<String>, Boolean> reads = new ConcurrentHashMap<>();
+		return (section, script, input) -> {
+			boolean read = reads.computeIfAbsent(Arrays.asList(section, script), unused -> !propertiesReadBy(section, script, keySet).isEmpty());
+			return read || input == null ? compiler.compileSection(section, script, input) : input;
+		};
+	}
+
+	/**
+	 * Returns the given properties which the script of the given section reads, without running it.
+	 * <p>
+	 * By default, that's the mustache keys of the script (see {@link #template}).  Subclasses which
+	 * make properties available to scripts in any other way must override this, as {@link FreshMark} does.
+	 */
+	protected Set<String> propertiesReadBy(String section, String script, Set<String> properties) {
+		Set<String> read = new LinkedHashSet<>();
+		for (String key : mustacheTemplateFor(script).keys()) {
+			if (properties.contains(key)) {
+				read.add(key);
+			}
+		}
+		return read;
+	}
+
 	/**
 	 * Performs templating on the script before passing it to the {@link ScriptEngine} created by {@link #setupScriptEngine}.
 	 * <p>
 	 * Defaults to mustache-based templating which uses {@link #keyToValue(String, String)} to decode keys.
 	 */
 	protected String template(String section, String script) {
-		return mustacheTemplate(script, key -> keyToValue(section, key));
+		return mustacheTemplateFor(script).render(key -> keyToValue(section, key));
+	}
+
+	/** Returns the parsed mustache template for the given script, parsing it only if we haven't seen it before. */
+	protected MustacheTemplate mustacheTemplateFor(String script) {
+		synchronized (templates) {
+			return templates.computeIfAbsent(script, MustacheTemplate::compile);
+		}
+	}
+
+	/**
+	 * Returns the output of the given templated program without using a script engine,
+	 * or null if the program needs one (which is always the case by default).
+	 * The result must be exactly what the engine would have computed.
+	 */
+	protected String compileWithoutEngine(String section, String program, String input) {
+		return null;
 	}
 
 	/** For the given section, return the templated value for the given key. */
@@ -102,24 +272,27 @@ public abstract class CommentScript implements Parser.SectionCompiler {
 	 * <p>
 	 * The {@code input} value will be set for you, and the {@code output} value will
 	 * be extracted for you, but you must do everything else.
+	 * <p>
+	 * Implementations are free to return the same engine for many sections (see {@link FreshMark}),
+	 * in which case {@code input} and {@code output} are reset before every section, but
+	 * any other global state created by a script will be visible to the scripts which follow it.
 	 */
 	protected abstract ScriptEngine setupScriptEngine(String section) throws ScriptException;
 
+	/** Called once the engine returned by {@link #setupScriptEngine} has finished with a section.  Does nothing by default. */
+	protected void releaseScriptEngine(ScriptEngine engine) {}
+
+	/**
+	 * Returns the compiled scripts of the given engine, which must be a map from {@link ScriptCache#newEngineCache()}
+	 * that's kept with the engine, so that they're garbage collected together.  Returns null by default, which
+	 * means scripts aren't compiled ahead of time, because an engine which isn't reused wouldn't run them again.
+	 */
+	protected Map<String, CompiledScript> compiledScriptsOf(ScriptEngine engine) {
+		return null;
+	}
+
 	/** Mustache templating. */
 	static String mustacheTemplate(String input, Function<String, String> keyToValue) {
-		Matcher matcher = MUSTACHE_PATTERN.matcher(input);
-		StringBuilder result = new StringBuilder(input.length() * 3 / 2);
-
-		int lastElement = 0;
-		while (matcher.find()) {
-			result.append(matcher.group(1));
-			result.append(keyToValue.apply(matcher.group(2)));
-			lastElement = matcher.end();
-		}
-		result.append(input.substring(lastElement));
-		return result.toString();
+		return MustacheTemplate.compile(input).render(keyToValue);
 	}
-
-	/** Regex which matches for {@code {{key}}}. */
-	private static final Pattern MUSTACHE_PATTERN = Pattern.compile("(.*?)\\{\\{(.*?)\\}\\}", Pattern.DOTALL);
 }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Timings and sizes for compiling a document, and for each of its sections.
+ * <p>
+ * Pass a {@link Listener} to {@link Parser#compile(String, Parser.SectionCompiler, Listener)}
+ * (or {@link CommentScript#compile(String, Parser.SectionCompiler, Listener)}) to find out
+ * which sections of a document are slow, and why.  Sizes are measured in chars rather than
+ * bytes, because the parser never sees the encoded document.  When no listener is passed,
+ * nothing is measured.
+ */
+public final class CompileMetrics {
+	private CompileMetrics() {}
+
+	/** Receives the metrics for every document which is compiled. */
+	@FunctionalInterface
+	public interface Listener {
+		/** Called once the given document has been compiled successfully. */
+		void documentCompiled(Document document);
+	}
+
+	/** The metrics for a single document. */
+	public static final class Document {
+		final List<Section> sections = new ArrayList<>();
+		long totalNanos, parseNanos;
+		int charsIn, charsOut;
+
+		Document() {}
+
+		/** Starts the metrics for the next section. */
+		Section newSection(String name) {
+			Section section = new Section(name, sections.size());
+			sections.add(section);
+			return section;
+		}
+
+		/** The sections of the document, in order. */
+		public List<Section> sections() {
+			return Collections.unmodifiableList(sections);
+		}
+
+		/** Time spent compiling the entire document. */
+		public long totalNanos() {
+			return totalNanos;
+		}
+
+		/** Time spent finding the tags of the document, which is everything besides compiling and reassembling its sections. */
+		public long parseNanos() {
+			return parseNanos;
+		}
+
+		/** Length of the raw document. */
+		public int charsIn() {
+			return charsIn;
+		}
+
+		/** Length of the compiled document. */
+		public int charsOut() {
+			return charsOut;
+		}
+	}
+
+	/**
+	 * The metrics for a single section.  The template, engine setup, and eval times are
+	 * only measured by a {@link CommentScript}, and are zero if the section was {@link #memoized()}.
+	 */
+	public static final class Section {
+		final String name;
+		final int index;
+		long parseNanos, compileNanos, templateNanos, engineSetupNanos, evalNanos, reassembleNanos;
+		int charsIn, charsOut;
+		boolean memoized, scriptCached, interpreted;
+
+		Section(String name, int index) {
+			this.name = name;
+			this.index = index;
+		}
+
+		/** The name of the section. */
+		public String name() {
+			return name;
+		}
+
+		/** The position of this section within its document, starting at zero. */
+		public int index() {
+			return index;
+		}
+
+		/** Time spent reading the section, from its open tag to its close tag. */
+		public long parseNanos() {
+			return parseNanos;
+		}
+
+		/** Time spent in {@link Parser.SectionCompiler#compileSection}, which includes the template, engine setup, and eval times. */
+		public long compileNanos() {
+			return compileNanos;
+		}
+
+		/** Time spent applying the mustache template to the script. */
+		public long templateNanos() {
+			return templateNanos;
+		}
+
+		/** Time spent getting a script engine ready for the section. */
+		public long engineSetupNanos() {
+			return engineSetupNanos;
+		}
+
+		/** Time spent evaluating the script, including compiling it if it wasn't cached. */
+		public long evalNanos() {
+			return evalNanos;
+		}
+
+		/** Time spent reassembling the compiled output into the document. */
+		public long reassembleNanos() {
+			return reassembleNanos;
+		}
+
+		/** Length of the section's body before compiling. */
+		public int charsIn() {
+			return charsIn;
+		}
+
+		/** Length of the section's body after compiling. */
+		public int charsOut() {
+			return charsOut;
+		}
+
+		/** True if the output was remembered by a {@link MemoizingSectionCompiler}, so the script didn't run. */
+		public boolean memoized() {
+			return memoized;
+		}
+
+		/** True if the script was simple enough to run without a script engine (see {@link CommentScript#compileWithoutEngine}). */
+		public boolean interpreted() {
+			return interpreted;
+		}
+
+		/** True if the script was already compiled by the {@link ScriptCache}. */
+		public boolean scriptCached() {
+			return scriptCached;
+		}
+	}
+
+	/** The section which the current thread is compiling, if anyone is listening. */
+	private static final ThreadLocal<Section> CURRENT = new ThreadLocal<>();
+
+	/** Returns the metrics for the section which the current thread is compiling, or null if nobody is listening. */
+	static Section current() {
+		return CURRENT.get();
+	}
+
+	/** Sets the section which the current thread is compiling, and returns the previous one (so that it can be restored). */
+	static Section setCurrent(Section section) {
+		Section previous = CURRENT.get();
+		if (section == null) {
+			CURRENT.remove();
+		} else {
+			CURRENT.set(section);
+		}
+		return previous;
+	}
+}
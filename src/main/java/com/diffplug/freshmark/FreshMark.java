@@ -17,52 +17,449 @@ package com.diffplug.freshmark;
 
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import javax.script.Bindings;
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
+import javax.script.SimpleBindings;
 
 import com.diffplug.common.base.Errors;
 import com.diffplug.jscriptbox.JScriptBox;
+import com.diffplug.jscriptbox.Language;
 import com.diffplug.jscriptbox.javascript.Nashorn;
 
 /**
  * FreshMark is designed to generate and modify
  * markdown using javascript.
+ * <p>
+ * Booting a script engine is far more expensive than running a
+ * typical section script, so a FreshMark keeps a pool of engines
+ * which have already been built.  A section borrows an engine
+ * from the pool (building one only if they're all in use), and
+ * returns it when it's done, so there are never more engines than
+ * there have been threads compiling at once.  If a script changes
+ * or declares any global (other than {@code input} and {@code output}),
+ * its engine is dropped rather than returned, so that every section
+ * sees the same globals, no matter which engine it gets.
+ * <p>
+ * Scripts which are a single assignment to {@code output} using only
+ * strings, properties, {@code input}, and the built-in functions are
+ * run without any script engine at all.
+ * The engine for every other script is built by the {@link Language}
+ * passed to the constructor, which is {@link JavaScript#language()} by default.
  */
 public class FreshMark extends CommentScript {
-	private static final String INTRON = "<!---freshmark";
+	/** The start of every FreshMark tag. */
+	static final String INTRON = "<!---freshmark";
 	private static final String EXON = "-->";
 
 	private final Map<String, ?> properties;
+	/** The properties which scripts can see as variables, filtered once and shared by every engine. */
+	private final Map<String, Object> bindableProperties;
 	private final Consumer<String> warningStream;
+	/** Runs simple scripts without an engine. */
+	private final BuiltinInterpreter interpreter;
+	/** The engines, which might be shared with other FreshMarks (see {@link #compileVariants}). */
+	private final EnginePool pool;
+	/** Warnings for the document which the current thread is compiling as part of {@link #compileAll}, rather than the warningStream. */
+	private final ThreadLocal<Consumer<String>> batchWarnings = new ThreadLocal<>();
 
 	public FreshMark(Map<String, ?> properties, Consumer<String> warningStream) {
-		super(new ParserIntronExon(INTRON, EXON));
+		this(properties, warningStream, JavaScript.language());
+	}
+
+	/** Creates a FreshMark whose script engines are built by the given language. */
+	public FreshMark(Map<String, ?> properties, Consumer<String> warningStream, Language language) {
+		this(properties, warningStream, new EnginePool(language));
+	}
+
+	/** Creates a FreshMark which borrows its engines from the given FreshMark, and binds its own properties to them. */
+	private FreshMark(FreshMark sharesEngines, Map<String, ?> properties, Consumer<String> warningStream) {
+		this(properties, warningStream, sharesEngines.pool);
+	}
+
+	private FreshMark(Map<String, ?> properties, Consumer<String> warningStream, EnginePool pool) {
+		super(new ParserIntronExon(INTRON, EXON), pool.scriptCache);
 		this.properties = Objects.requireNonNull(properties);
 		this.warningStream = Objects.requireNonNull(warningStream);
+		this.pool = pool;
+		this.bindableProperties = bindable(properties);
+		this.interpreter = new BuiltinInterpreter(bindableProperties);
+	}
+
+	@Override
+	protected String compileWithoutEngine(String section, String program, String input) {
+		return interpreter.eval(program, input);
+	}
+
+	/** Scripts can read properties through mustache keys, and as variables (see {@link PropertyReferences}). */
+	@Override
+	protected Set<String> propertiesReadBy(String section, String script, Set<String> properties) {
+		return PropertyReferences.of(script, properties);
 	}
 
 	@Override
 	protected ScriptEngine setupScriptEngine(String section) throws ScriptException {
-		JScriptBox jscriptBox = JScriptBox.create();
-		// add every property which is a valid keyword
+		ScriptEngine engine = pool.idle.pollFirst();
+		if (engine == null) {
+			engine = pool.build();
+		}
+		EngineBinding binding = pool.bindings.get(engine);
+		if (binding.owner != this) {
+			bind(engine, binding);
+		}
+		return engine;
+	}
+
+	@Override
+	protected void releaseScriptEngine(ScriptEngine engine) {
+		if (pool.bindings.get(engine).globals.changedIn(engine.getBindings(ScriptContext.ENGINE_SCOPE))) {
+			// the next section must not see this section's globals
+			pool.bindings.remove(engine);
+		} else {
+			// most-recently-used first, so the hottest engine gets reused
+			pool.idle.offerFirst(engine);
+		}
+	}
+
+	@Override
+	protected Map<String, CompiledScript> compiledScriptsOf(ScriptEngine engine) {
+		return pool.bindings.get(engine).scripts;
+	}
+
+	/** Returns the properties which are valid identifiers (and aren't shadowed by a built-in function). */
+	private static Map<String, Object> bindable(Map<String, ?> properties) {
+		Map<String, Object> bindable = new HashMap<>();
 		properties.forEach((key, value) -> {
-			if (JScriptBox.isValidIdentifier(key) && !Nashorn.isReserved(key)) {
-				jscriptBox.set(key).toValue(value);
+			if (JScriptBox.isValidIdentifier(key) && !Nashorn.isReserved(key) && !BuiltinInterpreter.BUILTINS.contains(key)) {
+				bindable.put(key, value);
+			}
+		});
+		return Collections.unmodifiableMap(bindable);
+	}
+
+	/** Engines which are built by a single language, and can be bound to the properties of any FreshMark which shares them. */
+	private static final class EnginePool {
+		final Language language;
+		/** Engines which aren't in use, with the built-in functions already bound. */
+		final Deque<ScriptEngine> idle = new ConcurrentLinkedDeque<>();
+		/** The properties which each engine is bound to, and its compiled scripts. */
+		final Map<ScriptEngine, EngineBinding> bindings = new ConcurrentHashMap<>();
+		final ScriptCache scriptCache = new ScriptCache(ScriptCache.DEFAULT_MAX_SIZE);
+
+		EnginePool(Language language) {
+			this.language = Objects.requireNonNull(language);
+		}
+
+		/** Builds a script engine with the built-in functions, which isn't bound to any properties yet. */
+		ScriptEngine build() throws ScriptException {
+			ScriptEngine engine = JScriptBox.create()
+					.set("link").toFunc2(FreshMark::link)
+					.set("image").toFunc2(FreshMark::image)
+					.set("shield").toFunc4(FreshMark::shield)
+					.set("prefixDelimiterReplace").toFunc4(FreshMark::prefixDelimiterReplace)
+					.build(language);
+			bindings.put(engine, new EngineBinding(scriptCache.newEngineCache()));
+			return engine;
+		}
+	}
+
+	/** The properties which an engine is bound to, and the scripts it has compiled. */
+	private static final class EngineBinding {
+		/** Dropped along with the engine. */
+		final Map<String, CompiledScript> scripts;
+		/** The FreshMark whose properties are bound, or null if there isn't one yet. */
+		FreshMark owner;
+		/** Engine globals which were replaced by a property, and their original value. */
+		final Map<String, Object> replaced = new HashMap<>();
+		/** Properties which were declared in the engine without replacing anything. */
+		final Set<String> added = new HashSet<>();
+		/** The globals of the engine, as they were when it was bound. */
+		EngineGlobals globals;
+
+		EngineBinding(Map<String, CompiledScript> scripts) {
+			this.scripts = scripts;
+		}
+	}
+
+	/** Binds this FreshMark's properties to the given engine, unbinding the properties of the FreshMark which used it last. */
+	private void bind(ScriptEngine engine, EngineBinding binding) {
+		Bindings engineScope = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+		binding.added.forEach(engineScope::remove);
+		engineScope.putAll(binding.replaced);
+		binding.added.clear();
+		binding.replaced.clear();
+		Map<String, Object> declared;
+		if (JavaScript.resolvesGlobalScope(engine)) {
+			// rather than declaring every property in every engine, the engine looks up
+			// the few that a script actually uses in the global scope when they're used
+			engine.setBindings(new SimpleBindings(bindableProperties), ScriptContext.GLOBAL_SCOPE);
+			// but the engine's own globals (such as Nashorn's "org" package) hide the global scope, so those must be declared
+			declared = new HashMap<>();
+			for (Map.Entry<String, Object> entry : bindableProperties.entrySet()) {
+				if (engineScope.containsKey(entry.getKey())) {
+					declared.put(entry.getKey(), entry.getValue());
+				}
+			}
+		} else {
+			declared = bindableProperties;
+		}
+		declared.forEach((key, value) -> {
+			if (engineScope.containsKey(key)) {
+				binding.replaced.put(key, engineScope.get(key));
+			} else {
+				binding.added.add(key);
+			}
+			engineScope.put(key, value);
+		});
+		binding.owner = this;
+		binding.globals = new EngineGlobals(engineScope);
+	}
+
+	/** The globals of an engine as they were when it was bound, used to find out if a script changed them. */
+	private static final class EngineGlobals {
+		/** The globals which every section resets for itself. */
+		private static final Set<String> PER_SECTION = new HashSet<>(Arrays.asList("input", "output"));
+
+		final Map<String, Object> values = new HashMap<>();
+
+		EngineGlobals(Bindings engineScope) {
+			for (String name : engineScope.keySet()) {
+				if (!PER_SECTION.contains(name)) {
+					values.put(name, engineScope.get(name));
+				}
+			}
+		}
+
+		/** Returns true if a script has assigned, declared, or deleted a global since the engine was bound. */
+		boolean changedIn(Bindings engineScope) {
+			int numGlobals = 0;
+			for (String name : engineScope.keySet()) {
+				if (!PER_SECTION.contains(name)) {
+					if (!values.containsKey(name) || !Objects.equals(values.get(name), engineScope.get(name))) {
+						return true;
+					}
+					++numGlobals;
+				}
+			}
+			return numGlobals != values.size();
+		}
+	}
+
+	/**
+	 * Compiles every document concurrently on the common ForkJoinPool.
+	 * 
+	 * @see #compileAll(Map, Executor)
+	 */
+	public <K> Map<K, Result> compileAll(Map<K, String> documents) {
+		return compileAll(documents, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Compiles every document concurrently on the given executor, and returns the
+	 * result for each one in the same order as the given map.
+	 * <p>
+	 * Every document shares this FreshMark's engines and caches, so a batch is much
+	 * cheaper than a FreshMark per document.  An error in one document doesn't stop the
+	 * others from being compiled, and each document's warnings go to its own result rather
+	 * than to the warning stream.
+	 */
+	public <K> Map<K, Result> compileAll(Map<K, String> documents, Executor executor) {
+		Map<K, CompletableFuture<Result>> futures = new LinkedHashMap<>();
+		documents.forEach((key, document) -> futures.put(key, CompletableFuture.supplyAsync(() -> compileForBatch(document), executor)));
+		Map<K, Result> results = new LinkedHashMap<>();
+		futures.forEach((key, future) -> results.put(key, future.join()));
+		return results;
+	}
+
+	/** Compiles a single document for {@link #compileAll}, capturing its warnings and error. */
+	private Result compileForBatch(String document) {
+		List<String> warnings = new ArrayList<>();
+		Consumer<String> previous = batchWarnings.get();
+		batchWarnings.set(warnings::add);
+		try {
+			return new Result(compile(document), warnings, null);
+		} catch (Exception e) {
+			return new Result(null, warnings, e);
+		} finally {
+			if (previous == null) {
+				batchWarnings.remove();
+			} else {
+				batchWarnings.set(previous);
+			}
+		}
+	}
+
+	/**
+	 * Compiles the given document against each of the given sets of properties, using {@link JavaScript#language()}.
+	 * 
+	 * @see #compileVariants(String, Map, Language)
+	 */
+	public static <K> Map<K, Result> compileVariants(String document, Map<K, ? extends Map<String, ?>> variants) {
+		return compileVariants(document, variants, JavaScript.language());
+	}
+
+	/**
+	 * Compiles the given document against each of the given sets of properties, and returns
+	 * the result for each one in the same order as the given map.
+	 * <p>
+	 * The document is only parsed once.  A section whose script doesn't read any of the properties
+	 * which differ between the variants is only compiled once, and its output and warnings are shared
+	 * by every variant.  A script reads a property if the property is a mustache {@code {{key}}} in
+	 * the script, or if its name appears as a word anywhere in the script.  As with {@link MemoizingSectionCompiler},
+	 * sharing is only correct for scripts which depend on nothing but their input and properties.
+	 * Every variant borrows its engines from a single pool, and only the properties which the engine
+	 * can see are swapped when an engine moves from one variant to another.
+	 * An error in one variant doesn't stop the others from being compiled.
+	 */
+	public static <K> Map<K, Result> compileVariants(String document, Map<K, ? extends Map<String, ?>> variants, Language language) {
+		Map<K, Result> results = new LinkedHashMap<>();
+		if (variants.isEmpty()) {
+			return results;
+		}
+		ParsedDocument parsed;
+		try {
+			parsed = new ParserIntronExon(INTRON, EXON).parse(document);
+		} catch (Exception e) {
+			variants.keySet().forEach(key -> results.put(key, new Result(null, Collections.emptyList(), e)));
+			return results;
+		}
+		Set<String> varying = varyingKeys(variants.values());
+		// the sections which don't read a varying property are compiled with the first variant's properties, and shared
+		FreshMark sharedFreshMark = new FreshMark(variants.values().iterator().next(), warning -> {}, language);
+		Map<List<String>, SharedSection> sharedSections = new HashMap<>();
+		Map<List<String>, Boolean> readsVarying = new HashMap<>();
+		variants.forEach((key, properties) -> {
+			List<String> warnings = new ArrayList<>();
+			FreshMark freshmark = new FreshMark(sharedFreshMark, properties, warnings::add);
+			Parser.SectionCompiler compiler = (section, script, input) -> {
+				if (readsVarying.computeIfAbsent(Arrays.asList(section, script), unused -> !sharedFreshMark.propertiesReadBy(section, script, varying).isEmpty())) {
+					return freshmark.compileSection(section, script, input);
+				} else {
+					SharedSection shared = sharedSections.computeIfAbsent(Arrays.asList(section, script, input),
+							unused -> sharedFreshMark.compileShared(section, script, input));
+					return shared.replay(warnings::add);
+				}
+			};
+			try {
+				results.put(key, new Result(freshmark.compile(parsed, compiler), warnings, null));
+			} catch (Exception e) {
+				results.put(key, new Result(null, warnings, e));
 			}
 		});
-		// add the functions and build the javascript
-		return jscriptBox
-				.set("link").toFunc2(FreshMark::link)
-				.set("image").toFunc2(FreshMark::image)
-				.set("shield").toFunc4(FreshMark::shield)
-				.set("prefixDelimiterReplace").toFunc4(FreshMark::prefixDelimiterReplace)
-				.build(Nashorn.language());
+		return results;
+	}
+
+	/** Returns the keys whose values aren't the same in every one of the given property maps. */
+	private static Set<String> varyingKeys(Collection<? extends Map<String, ?>> variants) {
+		Set<String> all = new HashSet<>();
+		variants.forEach(properties -> all.addAll(properties.keySet()));
+		Map<String, ?> first = variants.iterator().next();
+		Set<String> varying = new HashSet<>();
+		for (String key : all) {
+			for (Map<String, ?> properties : variants) {
+				if (!Objects.equals(first.get(key), properties.get(key))) {
+					varying.add(key);
+					break;
+				}
+			}
+		}
+		return varying;
+	}
+
+	/** Compiles a section whose output is shared by every variant in {@link #compileVariants}, capturing its warnings and error. */
+	private SharedSection compileShared(String section, String script, String input) {
+		List<String> warnings = new ArrayList<>();
+		Consumer<String> previous = batchWarnings.get();
+		batchWarnings.set(warnings::add);
+		try {
+			return new SharedSection(compileSection(section, script, input), warnings, null);
+		} catch (RuntimeException e) {
+			return new SharedSection(null, warnings, e);
+		} finally {
+			if (previous == null) {
+				batchWarnings.remove();
+			} else {
+				batchWarnings.set(previous);
+			}
+		}
+	}
+
+	/** The output of a section which is shared by several variants. */
+	private static final class SharedSection {
+		final String output;
+		final List<String> warnings;
+		final RuntimeException error;
+
+		SharedSection(String output, List<String> warnings, RuntimeException error) {
+			this.output = output;
+			this.warnings = warnings;
+			this.error = error;
+		}
+
+		/** Passes the warnings to the given consumer, and then returns the output or throws the error. */
+		String replay(Consumer<String> warningsOfVariant) {
+			warnings.forEach(warningsOfVariant);
+			if (error != null) {
+				throw error;
+			}
+			return output;
+		}
+	}
+
+	/** The outcome of compiling a single document with {@link #compileAll} or {@link #compileVariants}. */
+	public static final class Result {
+		private final String output;
+		private final List<String> warnings;
+		private final Exception error;
+
+		Result(String output, List<String> warnings, Exception error) {
+			this.output = output;
+			this.warnings = Collections.unmodifiableList(warnings);
+			this.error = error;
+		}
+
+		/** True if the document compiled successfully. */
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		/** The compiled document, or null if there was an error. */
+		public String output() {
+			return output;
+		}
+
+		/** The warnings from compiling the document, even if it failed. */
+		public List<String> warnings() {
+			return warnings;
+		}
+
+		/** The error which stopped the document from compiling, or null if it compiled successfully. */
+		public Exception error() {
+			return error;
+		}
 	}
 
 	@Override
@@ -71,7 +468,8 @@ public class FreshMark extends CommentScript {
 		if (value != null) {
 			return Objects.toString(value);
 		} else {
-			warningStream.accept("Unknown key '" + key + "'");
+			Consumer<String> warnings = batchWarnings.get();
+			(warnings != null ? warnings : warningStream).accept("Unknown key '" + key + "'");
 			return key + "=UNKNOWN";
 		}
 	}
@@ -102,9 +500,46 @@ public class FreshMark extends CommentScript {
 
 	/** Replaces after prefix and before delimiter with replacement.  */
 	public static String prefixDelimiterReplace(String input, String prefix, String delimiter, String replacement) {
+		if (prefix.isEmpty() || delimiter.isEmpty()) {
+			// empty strings match everywhere, which the regex handles correctly
+			return prefixDelimiterReplaceRegex(input, prefix, delimiter, replacement);
+		}
+		StringBuilder builder = null;
+		int lastElement = 0;
+		while (true) {
+			int prefixStart = input.indexOf(prefix, lastElement);
+			if (prefixStart < 0) {
+				break;
+			}
+			int replaceStart = prefixStart + prefix.length();
+			int delimiterStart = input.indexOf(delimiter, replaceStart);
+			if (delimiterStart < 0) {
+				break;
+			}
+			if (builder == null) {
+				builder = new StringBuilder(input.length() * 3 / 2);
+			}
+			builder.append(input, lastElement, replaceStart);
+			builder.append(replacement);
+			builder.append(delimiter);
+			lastElement = delimiterStart + delimiter.length();
+		}
+		if (builder == null) {
+			return input;
+		}
+		builder.append(input, lastElement, input.length());
+		return builder.toString();
+	}
+
+	/** Regex-based implementation of {@link #prefixDelimiterReplace}, for when the prefix or delimiter is empty. */
+	private static String prefixDelimiterReplaceRegex(String input, String prefix, String delimiter, String replacement) {
 		StringBuilder builder = new StringBuilder(input.length() * 3 / 2);
 		int lastElement = 0;
-		Pattern pattern = Pattern.compile("(.*?" + Pattern.quote(prefix) + ")(.*?)(" + Pattern.quote(delimiter) + ")", Pattern.DOTALL);
+		Pattern pattern;
+		synchronized (PREFIX_DELIMITER_PATTERNS) {
+			pattern = PREFIX_DELIMITER_PATTERNS.computeIfAbsent(Arrays.asList(prefix, delimiter),
+					key -> Pattern.compile("(.*?" + Pattern.quote(prefix) + ")(.*?)(" + Pattern.quote(delimiter) + ")", Pattern.DOTALL));
+		}
 		Matcher matcher = pattern.matcher(input);
 		while (matcher.find()) {
 			builder.append(matcher.group(1));
@@ -115,4 +550,7 @@ public class FreshMark extends CommentScript {
 		builder.append(input.substring(lastElement));
 		return builder.toString();
 	}
+
+	/** Compiled patterns for {@link #prefixDelimiterReplaceRegex}, keyed by prefix and delimiter. */
+	private static final LruCache<List<String>, Pattern> PREFIX_DELIMITER_PATTERNS = new LruCache<>(64);
 }
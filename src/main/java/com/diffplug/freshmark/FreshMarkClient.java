@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * A thin client for {@link FreshMarkDaemon}, which takes exactly the same
+ * arguments as {@link FreshMarkConsole}, with an optional leading {@code -port N}.
+ * <p>
+ * If no daemon is listening, the arguments are run by a {@link FreshMarkConsole}
+ * in this JVM instead, so the client always behaves like the console.
+ */
+public class FreshMarkClient {
+	/**
+	 * Sends the given console arguments to the daemon on the given port, and returns the exit code.
+	 * Throws a {@link ConnectException} if no daemon is running.
+	 */
+	public static int run(int port, File workingDir, String[] args, PrintStream err) throws IOException {
+		return run(port, FreshMarkDaemon.defaultTokenDir(), workingDir, args, err);
+	}
+
+	/** Sends the given console arguments to the daemon on the given port, whose token is in the given directory. */
+	static int run(int port, File tokenDir, File workingDir, String[] args, PrintStream err) throws IOException {
+		Path tokenFile = FreshMarkDaemon.tokenFile(tokenDir, port).toPath();
+		if (!Files.exists(tokenFile)) {
+			throw new ConnectException("No daemon has a token in " + tokenFile);
+		}
+		String token = new String(Files.readAllBytes(tokenFile), StandardCharsets.UTF_8);
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				DataInputStream in = new DataInputStream(socket.getInputStream())) {
+			out.writeUTF(token);
+			out.writeUTF(workingDir.getAbsolutePath());
+			out.writeInt(args.length);
+			for (String arg : args) {
+				out.writeUTF(arg);
+			}
+			out.flush();
+			byte[] output = new byte[in.readInt()];
+			in.readFully(output);
+			err.print(new String(output, StandardCharsets.UTF_8));
+			err.flush();
+			return in.readInt();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = FreshMarkDaemon.DEFAULT_PORT;
+		if (args.length >= 2 && args[0].equals("-port")) {
+			port = Integer.parseInt(args[1]);
+			args = Arrays.copyOfRange(args, 2, args.length);
+		}
+		int exitCode;
+		try {
+			exitCode = run(port, new File("").getAbsoluteFile(), args, System.err);
+		} catch (ConnectException e) {
+			if (Arrays.asList(args).equals(Arrays.asList(FreshMarkDaemon.STOP))) {
+				// nothing to stop
+				return;
+			}
+			// no daemon, so do it ourselves
+			exitCode = new FreshMarkConsole(args).exitCode();
+		}
+		if (exitCode != 0) {
+			System.exit(exitCode);
+		}
+	}
+}
@@ -19,15 +19,41 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.StandardOpenOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.script.ScriptException;
 
 import org.kohsuke.args4j.CmdLineParser;
 import org.kohsuke.args4j.Option;
@@ -70,52 +96,582 @@ public class FreshMarkConsole {
 	@Option(name = "-properties", usage = "loads properties from the given file")
 	private File propFile;
 
-	@Option(name = "-file", required = true, usage = "applies freshmark to the given file (multiple are allowed)")
-	private List<File> files = new ArrayList<File>();
+	// the options which can be repeated are set through methods, so that the usage doesn't print their values as defaults
+	private final List<File> files = new ArrayList<File>();
+
+	@Option(name = "-file", usage = "applies freshmark to the given file (multiple are allowed)")
+	void addFile(File file) {
+		files.add(file);
+	}
+
+	private final List<File> dirs = new ArrayList<File>();
+
+	@Option(name = "-dir", metaVar = "DIR", usage = "applies freshmark to every file in the given directory which contains a freshmark tag, skipping .git and build directories (multiple are allowed)")
+	void addDir(File dir) {
+		dirs.add(dir);
+	}
+
+	private final List<String> includes = new ArrayList<>();
+
+	@Option(name = "-include", metaVar = "GLOB", usage = "only the files in -dir whose path (relative to the dir) matches one of these globs are compiled, default **.md (multiple are allowed)")
+	void addInclude(String glob) {
+		includes.add(glob);
+	}
+
+	private final List<String> excludes = new ArrayList<>();
+
+	@Option(name = "-exclude", metaVar = "GLOB", usage = "the files in -dir whose path (relative to the dir) matches one of these globs are skipped (multiple are allowed)")
+	void addExclude(String glob) {
+		excludes.add(glob);
+	}
+
+	@Option(name = "-threads", usage = "the number of files to compile concurrently (default: the number of processors)")
+	private Integer threads;
+
+	@Option(name = "-check", usage = "reports the files which are not fresh and fails if there are any, without writing anything")
+	private boolean check;
+
+	@Option(name = "-cache", usage = "skips files which haven't changed since they were last compiled with the same properties, as recorded in the given file")
+	private File cacheFile;
+
+	@Option(name = "-profile", usage = "prints how long each section of each file took to compile")
+	private boolean profile;
+
+	@Option(name = "-profileJson", usage = "writes how long each section of each file took to compile to the given file, as JSON")
+	private File profileJson;
+
+	@Option(name = "-parallelSections", usage = "compiles the sections within each file concurrently, which is only safe if no section depends on global variables set by another")
+	private boolean parallelSections;
+
+	@Option(name = "-memoize", usage = "compiles sections which are identical across files only once, which is only safe if no section depends on global variables set by another, and only prints their warnings once")
+	private boolean memoize;
+
+	@Option(name = "-watch", usage = "after compiling, keeps recompiling whichever files (or properties file) change, until stopped")
+	private boolean watch;
+
+	/** Where warnings, errors, and usage are printed. */
+	private final PrintStream err;
+	/** Relative paths are resolved against this directory, or the working directory if it is null. */
+	private final File baseDir;
+
+	/** Loaded from {@link #cacheFile}, or null if there isn't one. */
+	private FreshnessCache cache;
+	/** Hash of everything besides a file's content which affects its output. */
+	private String propertiesHash;
+
+	/** The files found in {@link #dirs} which contain a freshmark tag. */
+	private final List<File> discoveredFiles = new ArrayList<>();
+
+	/** The files which failed to compile the last time they were compiled. */
+	private final Set<File> failedFiles = new HashSet<>();
+
+	/** The files whose compiled output differed from their content. */
+	private final List<File> changedFiles = new ArrayList<>();
+	/** The number of files whose compiled output was the same as their content. */
+	private int unchangedCount;
+	/** Nonzero if there was an error in the first run, or if {@code -check} found a file which isn't fresh. */
+	private int exitCode;
 
 	private static final Charset CHARSET = StandardCharsets.UTF_8;
+	/** Discovered files which don't contain these bytes are skipped without being decoded. */
+	private static final byte[] INTRON_BYTES = FreshMark.INTRON.getBytes(CHARSET);
+	/** Directories which are never searched for files. */
+	static final List<String> SKIPPED_DIRS = Arrays.asList(".git", "build");
+	/** The files which are compiled from a dir, if there's no -include. */
+	static final String DEFAULT_INCLUDE = "**.md";
 
-	@SuppressFBWarnings(value = {"REC_CATCH_EXCEPTION", "UR_UNINIT_READ"}, justification = "we don't want to bother the console user with stacktraces, and fields are set by args4j magic")
 	public FreshMarkConsole(String[] args) {
+		this(args, System.err, null, Compiler::new);
+	}
+
+	/**
+	 * Runs the console with the given arguments.
+	 *
+	 * @param err		where warnings, errors, and usage are printed
+	 * @param baseDir	relative paths are resolved against this directory, or the working directory if it is null
+	 * @param compilers	returns a Compiler for the given properties, possibly one which is already warm
+	 */
+	@SuppressFBWarnings(value = {"REC_CATCH_EXCEPTION", "UR_UNINIT_READ"}, justification = "we don't want to bother the console user with stacktraces, and fields are set by args4j magic")
+	FreshMarkConsole(String[] args, PrintStream err, File baseDir, Function<Map<String, String>, Compiler> compilers) {
+		this.err = err;
+		this.baseDir = baseDir;
 		CmdLineParser parser = new CmdLineParser(this);
 		try {
 			// parse the arguments and get the config
 			parser.parseArgument(args);
 			// make sure some files were specified
-			if (files.isEmpty()) {
-				throw new IOException("No files were specified.");
-			}
-			// if a propFile was specified, load it and its contents to the properties map
-			if (propFile != null) {
-				Properties propFileContent = new Properties();
-				try (FileInputStream stream = new FileInputStream(propFile)) {
-					propFileContent.load(stream);
+			if (files.isEmpty() && dirs.isEmpty()) {
+				throw new IOException("No files were specified, use -file or -dir.");
+			}
+			if (watch && check) {
+				throw new IllegalArgumentException("-watch can't be combined with -check");
+			}
+			files.replaceAll(this::resolve);
+			dirs.replaceAll(this::resolve);
+			if (includes.isEmpty()) {
+				includes.add(DEFAULT_INCLUDE);
+			}
+			propFile = resolve(propFile);
+			cacheFile = resolve(cacheFile);
+			profileJson = resolve(profileJson);
+			// the -P properties, which the propFile is layered on top of
+			Map<String, String> argProperties = new HashMap<>(properties);
+			loadProperties(argProperties);
+			if (cacheFile != null) {
+				cache = FreshnessCache.load(cacheFile.toPath());
+			} else if (watch) {
+				// lets watch skip the events caused by its own writes
+				cache = new FreshnessCache();
+			}
+			int numThreads = threads != null ? threads : Runtime.getRuntime().availableProcessors();
+			if (numThreads < 1) {
+				throw new IllegalArgumentException("-threads must be at least 1, was " + numThreads);
+			}
+			ForkJoinPool pool = new ForkJoinPool(numThreads);
+			try {
+				// compile every file, with all the worker threads sharing the same Compiler
+				Compiler compiler = compilerFor(compilers);
+				if (!compileAll(compiler, files, dirs, pool)) {
+					printUsage("freshmark", parser, err);
+					exitCode = 1;
+				} else if (check && !changedFiles.isEmpty()) {
+					changedFiles.forEach(file -> err.println(file + " is not fresh"));
+					err.println(changedFiles.size() + " file(s) would change, " + unchangedCount + " unchanged");
+					exitCode = 1;
 				}
-				for (String key : propFileContent.stringPropertyNames()) {
-					properties.put(key, propFileContent.getProperty(key));
+				if (watch) {
+					watch(compiler, compilers, argProperties, pool);
 				}
-			}
-			// load these properties into a FreshMark
-			FreshMark freshMark = new FreshMark(properties, System.err::println);
-			for (File file : files) {
-				// read the file
-				String raw = new String(Files.readAllBytes(file.toPath()), CHARSET)
-						// ensure that it's all unix endings
-						.replace(LineEnding.WINDOWS.string, LineEnding.UNIX.string);
-				// compile the file
-				String compiled = freshMark.compile(raw)
-						// ensure that it has the requested line endings
-						.replace(LineEnding.UNIX.string, lineEnding.string);
-				// write out the compiled result
-				Files.write(file.toPath(), compiled.getBytes(CHARSET), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			} finally {
+				pool.shutdown();
 			}
 		} catch (Exception e) {
-			System.err.println(e.getMessage());
-			printUsage("freshmark", parser, System.err);
+			err.println(e.getMessage());
+			printUsage("freshmark", parser, err);
+			exitCode = 1;
+		}
+	}
+
+	/** Sets {@link #properties} to the given properties, overlaid with the content of {@link #propFile} (if any). */
+	private void loadProperties(Map<String, String> argProperties) throws IOException {
+		Map<String, String> loaded = new HashMap<>(argProperties);
+		// if a propFile was specified, load it and its contents to the properties map
+		if (propFile != null) {
+			Properties propFileContent = new Properties();
+			try (FileInputStream stream = new FileInputStream(propFile)) {
+				propFileContent.load(stream);
+			}
+			for (String key : propFileContent.stringPropertyNames()) {
+				loaded.put(key, propFileContent.getProperty(key));
+			}
+		}
+		properties = loaded;
+		propertiesHash = FreshnessCache.hashProperties(properties, lineEnding.string);
+	}
+
+	/**
+	 * Compiles the given files, and every file with a freshmark tag in the given dirs,
+	 * on the given pool.  Reports their warnings and errors, and returns true if they
+	 * all compiled successfully.
+	 */
+	private boolean compileAll(Compiler compiler, List<File> toCompile, List<File> dirsToSearch, ForkJoinPool pool) throws IOException {
+		List<ForkJoinTask<FileResult>> tasks = new ArrayList<>(toCompile.size());
+		for (File file : toCompile) {
+			tasks.add(submit(compiler, file, false, pool));
+		}
+		// the files are compiled while we're still searching for more
+		Set<Path> explicit = new HashSet<>();
+		toCompile.forEach(file -> explicit.add(file.toPath().toAbsolutePath().normalize()));
+		List<ForkJoinTask<FileResult>> discoveredTasks = new ArrayList<>();
+		for (File dir : dirsToSearch) {
+			search(dir.toPath(), file -> {
+				if (explicit.add(file.toAbsolutePath().normalize())) {
+					discoveredTasks.add(submit(compiler, file.toFile(), true, pool));
+				}
+			});
+		}
+		// the filesystem's order isn't stable, so the discovered files are reported in order of their path
+		List<FileResult> results = new ArrayList<>(tasks.size() + discoveredTasks.size());
+		tasks.forEach(task -> results.add(task.join()));
+		discoveredTasks.stream()
+				.map(ForkJoinTask::join)
+				.sorted(Comparator.comparing(result -> result.file.getPath()))
+				.forEach(results::add);
+		boolean prefixWithFile = files.size() > 1 || !dirs.isEmpty();
+		// report the results in the same order as the files were specified
+		boolean anyFailed = false;
+		ProfileReport report = new ProfileReport();
+		for (FileResult result : results) {
+			if (result.discovered && result.hasSections) {
+				discoveredFiles.add(result.file);
+			}
+			if (result.metrics != null) {
+				report.add(result.file, result.metrics);
+			}
+			String prefix = prefixWithFile ? result.file + ": " : "";
+			result.warnings.forEach(warning -> err.println(prefix + warning));
+			if (result.error != null) {
+				err.println(prefix + result.error.getMessage());
+				failedFiles.add(result.file);
+				anyFailed = true;
+			} else {
+				failedFiles.remove(result.file);
+				if (result.changed) {
+					changedFiles.add(result.file);
+				} else {
+					++unchangedCount;
+				}
+			}
+		}
+		if (cacheFile != null) {
+			TextFiles.writeAtomically(cacheFile.toPath(), ByteBuffer.wrap(cache.toBytes()));
+		}
+		if (profile) {
+			report.printTable(err);
+		}
+		if (profileJson != null) {
+			TextFiles.writeAtomically(profileJson.toPath(), ByteBuffer.wrap(report.toJson().getBytes(StandardCharsets.UTF_8)));
+		}
+		return !anyFailed;
+	}
+
+	/** Submits a task which compiles the given file, and skips it without decoding it if it was discovered and has no freshmark tags. */
+	private ForkJoinTask<FileResult> submit(Compiler compiler, File file, boolean discovered, ForkJoinPool pool) {
+		return pool.submit(() -> {
+			FileResult result = new FileResult(file, discovered);
+			try {
+				boolean measure = profile || profileJson != null;
+				compileFile(compiler, result, measure ? metrics -> result.metrics = metrics : null, parallelSections ? pool : null);
+			} catch (Exception e) {
+				result.error = e;
+				if (cache != null) {
+					cache.forget(file.toPath());
+				}
+			}
+			return result;
+		});
+	}
+
+	/** Passes every file in the given dir which matches the includes and excludes to the given consumer, skipping the {@link #SKIPPED_DIRS}. */
+	private void search(Path root, Consumer<Path> consumer) throws IOException {
+		List<PathMatcher> includeMatchers = matchers(root, includes);
+		List<PathMatcher> excludeMatchers = matchers(root, excludes);
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+				boolean skip = !dir.equals(root) && SKIPPED_DIRS.contains(dir.getFileName().toString());
+				return skip ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile()) {
+					Path relative = root.relativize(file);
+					if (includeMatchers.stream().anyMatch(matcher -> matcher.matches(relative))
+							&& excludeMatchers.stream().noneMatch(matcher -> matcher.matches(relative))) {
+						consumer.accept(file);
+					}
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private static List<PathMatcher> matchers(Path root, List<String> globs) {
+		List<PathMatcher> matchers = new ArrayList<>(globs.size());
+		for (String glob : globs) {
+			matchers.add(root.getFileSystem().getPathMatcher("glob:" + glob));
+		}
+		return matchers;
+	}
+
+	/** How long the filesystem must be quiet before watch compiles, so that a burst of saves is compiled once. */
+	static final long WATCH_DEBOUNCE_MS = 100;
+
+	/**
+	 * Watches the files and the properties file, and recompiles whichever files change until the
+	 * thread is interrupted.  If the properties file changes, every file is recompiled.
+	 * The compiler (and its warm script engines) is reused until the properties change.
+	 */
+	private void watch(Compiler compiler, Function<Map<String, String>, Compiler> compilers, Map<String, String> argProperties, ForkJoinPool pool) throws IOException {
+		// the files which were specified, along with the discovered files which have freshmark tags
+		List<File> allFiles = new ArrayList<>(files);
+		allFiles.addAll(discoveredFiles);
+		// the absolute path of every watched file
+		Map<Path, File> watchedFiles = new LinkedHashMap<>();
+		for (File file : allFiles) {
+			watchedFiles.put(file.toPath().toAbsolutePath().normalize(), file);
+		}
+		Path propPath = propFile == null ? null : propFile.toPath().toAbsolutePath().normalize();
+		try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+			// WatchService only watches directories, so watch the parent of every file
+			Set<Path> dirs = new LinkedHashSet<>();
+			watchedFiles.keySet().forEach(path -> dirs.add(path.getParent()));
+			if (propPath != null) {
+				dirs.add(propPath.getParent());
+			}
+			for (Path dir : dirs) {
+				dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+			err.println("Watching " + allFiles.size() + " file(s), press Ctrl+C to stop");
+			while (true) {
+				// wait for a change, then keep collecting changes until things are quiet
+				Set<Path> changed = new LinkedHashSet<>();
+				boolean overflow = false;
+				WatchKey key = watcher.take();
+				while (key != null) {
+					Path dir = (Path) key.watchable();
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflow = true;
+						} else {
+							changed.add(dir.resolve((Path) event.context()));
+						}
+					}
+					key.reset();
+					key = watcher.poll(WATCH_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+				}
+				List<File> toCompile;
+				Compiler compileWith = compiler;
+				if (propPath != null && changed.contains(propPath)) {
+					Map<String, String> previous = properties;
+					try {
+						loadProperties(argProperties);
+					} catch (IOException e) {
+						err.println(e.getMessage());
+						continue;
+					}
+					if (!properties.equals(previous)) {
+						compiler = compilerFor(compilers);
+					}
+					toCompile = allFiles;
+					// the files have been compiled with the previous properties, so only the sections
+					// which read a property that changed need to be compiled again, unless a file
+					// has changed too (or failed to compile last time), in which case it's stale
+					boolean filesChanged = changed.stream().anyMatch(watchedFiles::containsKey);
+					if (!filesChanged && !overflow && failedFiles.isEmpty()) {
+						compileWith = compiler.onlySectionsReading(changedKeys(previous, properties));
+					} else {
+						compileWith = compiler;
+					}
+				} else if (overflow) {
+					toCompile = allFiles;
+				} else {
+					toCompile = new ArrayList<>();
+					for (Path path : changed) {
+						File file = watchedFiles.get(path);
+						if (file != null) {
+							toCompile.add(file);
+						}
+					}
+				}
+				if (!toCompile.isEmpty()) {
+					int changedBefore = changedFiles.size();
+					compileAll(compileWith, toCompile, Collections.emptyList(), pool);
+					changedFiles.subList(changedBefore, changedFiles.size()).forEach(file -> err.println("Updated " + file));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/** Returns the keys whose values differ between the given properties. */
+	private static Set<String> changedKeys(Map<String, String> before, Map<String, String> after) {
+		Set<String> changed = new HashSet<>();
+		before.forEach((key, value) -> {
+			if (!value.equals(after.get(key))) {
+				changed.add(key);
+			}
+		});
+		after.keySet().forEach(key -> {
+			if (!before.containsKey(key)) {
+				changed.add(key);
+			}
+		});
+		return changed;
+	}
+
+	/** The files whose compiled output differed from their content (and were rewritten, unless {@code -check} was specified). */
+	public List<File> changedFiles() {
+		return Collections.unmodifiableList(changedFiles);
+	}
+
+	/** The number of files which were already fresh. */
+	public int unchangedCount() {
+		return unchangedCount;
+	}
+
+	/** Zero if every file compiled successfully (and was already fresh, if {@code -check} was specified). */
+	public int exitCode() {
+		return exitCode;
+	}
+
+	/** Returns the compiler for the current properties, memoized if {@code -memoize} was specified. */
+	private Compiler compilerFor(Function<Map<String, String>, Compiler> compilers) {
+		Compiler compiler = compilers.apply(properties);
+		return memoize ? compiler.memoized() : compiler;
+	}
+
+	/** Resolves the given file against {@link #baseDir}. */
+	private File resolve(File file) {
+		return file != null && baseDir != null && !file.isAbsolute() ? new File(baseDir, file.getPath()) : file;
+	}
+
+	/**
+	 * A FreshMark (with its pool of script engines) for a single set of properties, along with its memoized
+	 * sections (if any).  It's safe to share between threads, and between runs (see {@link FreshMarkDaemon}).
+	 */
+	static class Compiler {
+		/** The number of compiled sections which are remembered across files. */
+		private static final int MEMOIZED_SECTIONS = 1024;
+
+		private final Map<String, String> properties;
+		private final FreshMark freshMark;
+		/** Compiles each section. */
+		private final Parser.SectionCompiler sections;
+		/** Warnings go to whichever file the current thread is compiling a section of. */
+		private final ThreadLocal<Consumer<String>> warningsForCurrentFile;
+		/** Created the first time {@link #memoized()} is called. */
+		private MemoizingSectionCompiler memoizer;
+
+		Compiler(Map<String, String> properties) {
+			this.properties = properties;
+			warningsForCurrentFile = new ThreadLocal<>();
+			freshMark = new FreshMark(properties, warning -> warningsForCurrentFile.get().accept(warning));
+			sections = freshMark;
+		}
+
+		private Compiler(Compiler base, Parser.SectionCompiler sections) {
+			this.properties = base.properties;
+			this.warningsForCurrentFile = base.warningsForCurrentFile;
+			this.freshMark = base.freshMark;
+			this.sections = sections;
+		}
+
+		/**
+		 * Returns a compiler which only compiles sections that are repeated across files (and across runs,
+		 * since every call returns a compiler which shares the same memoized outputs) once.  The warnings
+		 * of a repeated section are only printed the first time.
+		 */
+		synchronized Compiler memoized() {
+			if (memoizer == null) {
+				memoizer = new MemoizingSectionCompiler(freshMark, MEMOIZED_SECTIONS);
+			}
+			return new Compiler(this, memoizer);
+		}
+
+		/**
+		 * Returns a compiler for documents which were compiled with properties that only differ from this
+		 * compiler's in the given keys, which only compiles the sections that read one of those keys.
+		 */
+		Compiler onlySectionsReading(Collection<String> changedKeys) {
+			return new Compiler(this, freshMark.onlySectionsReading(changedKeys, sections));
+		}
+
+		/**
+		 * Compiles the given document, sending its warnings to the given stream, and its metrics to the given listener (if it isn't null).
+		 * If the executor isn't null, the sections are compiled concurrently on it, and the warnings may arrive from several threads at once.
+		 * If the document doesn't have any sections, the raw instance itself is returned.
+		 */
+		String compile(String raw, Consumer<String> warnings, CompileMetrics.Listener listener, Executor executor) throws ScriptException {
+			// the sections might be compiled on other threads, so each section routes its own warnings
+			Parser.SectionCompiler routed = (section, script, input) -> {
+				Consumer<String> previous = warningsForCurrentFile.get();
+				warningsForCurrentFile.set(warnings);
+				try {
+					return sections.compileSection(section, script, input);
+				} finally {
+					if (previous == null) {
+						warningsForCurrentFile.remove();
+					} else {
+						warningsForCurrentFile.set(previous);
+					}
+				}
+			};
+			return freshMark.compile(raw, routed, listener, executor);
+		}
+	}
+
+	/** The warnings and error (if any) from compiling a single file. */
+	private static class FileResult {
+		final File file;
+		/** True if the file was found in a {@code -dir}, rather than specified with {@code -file}. */
+		final boolean discovered;
+		final List<String> warnings = new ArrayList<>();
+		Exception error;
+		boolean changed;
+		/** False if the file was skipped because it doesn't contain a freshmark tag. */
+		boolean hasSections = true;
+		/** Only set if the file was compiled with {@code -profile} or {@code -profileJson}. */
+		CompileMetrics.Document metrics;
+
+		FileResult(File file, boolean discovered) {
+			this.file = file;
+			this.discovered = discovered;
+		}
+
+		/** Sections might be compiled concurrently, so warnings might arrive concurrently. */
+		void warn(String warning) {
+			synchronized (warnings) {
+				warnings.add(warning);
+			}
+		}
+	}
+
+	/** Compiles the file of the given result in place, and records whether its content changed. */
+	@SuppressFBWarnings(value = "ES_COMPARING_STRINGS_WITH_EQ", justification = "The parser returns the same instance when there's nothing to compile.")
+	private void compileFile(Compiler compiler, FileResult result, CompileMetrics.Listener listener, Executor sectionExecutor) throws IOException, ScriptException {
+		Path path = result.file.toPath();
+		ByteBuffer bytes = TextFiles.readBytes(path);
+		// a discovered file without any tags is left alone, without decoding it
+		if (result.discovered && !TextFiles.contains(bytes, INTRON_BYTES)) {
+			result.hasSections = false;
+			return;
+		}
+		// if it was fresh last time, then it's still fresh, and we don't need a script engine at all
+		if (cache != null && cache.isFresh(path, bytes, propertiesHash)) {
+			return;
+		}
+		// decode the file, converting it to unix endings as we go
+		String text = TextFiles.decode(bytes.duplicate(), CHARSET);
+		// compile the file
+		String compiled = compiler.compile(text, result::warn, listener, sectionExecutor);
+		// without any sections, there's nothing to change, so leave it alone (even its line endings)
+		if (compiled == text) {
+			markFresh(result, path, bytes);
+			return;
+		}
+		// encode it with the requested line endings
+		ByteBuffer compiledBytes = TextFiles.encode(compiled, lineEnding.string, CHARSET);
+		// leave fresh files alone, so that their timestamps don't change
+		if (bytes.equals(compiledBytes)) {
+			markFresh(result, path, bytes);
+			return;
+		}
+		if (!check) {
+			TextFiles.writeAtomically(path, compiledBytes);
+			markFresh(result, path, compiledBytes);
+		}
+		result.changed = true;
+	}
+
+	/** Records that the given file is fresh, unless it had warnings, which must be printed every time it's compiled. */
+	private void markFresh(FileResult result, Path path, ByteBuffer bytes) {
+		if (cache == null) {
+			return;
+		}
+		if (result.warnings.isEmpty()) {
+			cache.markFresh(path, bytes, propertiesHash);
+		} else {
+			cache.forget(path);
 		}
 	}
 
 	public static void main(String[] args) {
-		new FreshMarkConsole(args);
+		int exitCode = new FreshMarkConsole(args).exitCode();
+		if (exitCode != 0) {
+			System.exit(exitCode);
+		}
 	}
 }
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * A long-running {@link FreshMarkConsole}, which keeps its script engines and caches
+ * warm between runs, so that each run costs milliseconds rather than a JVM and engine startup.
+ * <p>
+ * It listens on a loopback port, and {@link FreshMarkClient} sends it the same arguments as
+ * {@link FreshMarkConsole}.  Each run gets the output and exit code that the console would have.
+ * It only accepts connections from the local machine, and only runs requests which include the
+ * random token that it writes to a file that only its user can read (see {@link #tokenFile}).
+ * Every path which the console might write ({@code -file}, {@code -dir}, {@code -cache}, and
+ * {@code -profileJson}) must be within the client's working directory, and it rejects {@code -watch},
+ * which would never finish.
+ * <p>
+ * The protocol is a {@link DataOutputStream} request of the token, the client's working directory,
+ * the number of arguments, and then each argument, all as UTF strings.  The response is the length
+ * of the UTF-8 console output, the output itself, and then the exit code.  A request whose only
+ * argument is {@link #STOP} shuts down the daemon.
+ */
+public class FreshMarkDaemon implements AutoCloseable {
+	/** The port used when none is specified. */
+	public static final int DEFAULT_PORT = 7143;
+	/** The argument which asks the daemon to shut down. */
+	public static final String STOP = "-stop";
+
+	/** The number of distinct property sets whose Compiler is kept warm. */
+	private static final int WARM_COMPILERS = 16;
+
+	/** The most arguments a request may have. */
+	private static final int MAX_ARGS = 4096;
+	/** The arguments whose file (or the files within whose directory) might be written by the console, which must be within the client's working directory. */
+	private static final List<String> WRITTEN_FILE_ARGS = Arrays.asList("-file", "-dir", "-cache", "-profileJson");
+
+	private final ServerSocket server;
+	/** The secret which every request must include, and the file it's written to. */
+	private final String token;
+	private final File tokenFile;
+	private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+		Thread thread = new Thread(runnable, "freshmark-daemon-connection");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final LruCache<Map<String, String>, FreshMarkConsole.Compiler> compilers = new LruCache<>(WARM_COMPILERS);
+
+	/** Starts listening on the given loopback port (0 for any free port), with its token in {@link #defaultTokenDir()}. */
+	public FreshMarkDaemon(int port) throws IOException {
+		this(port, defaultTokenDir());
+	}
+
+	/** Starts listening on the given loopback port (0 for any free port), with its token in the given directory. */
+	FreshMarkDaemon(int port, File tokenDir) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		byte[] secret = new byte[32];
+		new SecureRandom().nextBytes(secret);
+		token = Base64.getEncoder().encodeToString(secret);
+		tokenFile = tokenFile(tokenDir, port());
+		try {
+			writeUserOnly(tokenFile.toPath(), token);
+		} catch (IOException e) {
+			server.close();
+			throw e;
+		}
+	}
+
+	/** The directory where daemons write their tokens, {@code ~/.freshmark}. */
+	public static File defaultTokenDir() {
+		return new File(System.getProperty("user.home"), ".freshmark");
+	}
+
+	/** The file in the given directory which holds the token of the daemon on the given port. */
+	public static File tokenFile(File tokenDir, int port) {
+		return new File(tokenDir, "daemon-" + port + ".token");
+	}
+
+	/** Writes the given content to a new file which only the current user can read. */
+	private static void writeUserOnly(Path file, String content) throws IOException {
+		Files.createDirectories(file.getParent());
+		Files.deleteIfExists(file);
+		if (file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+			Files.createFile(file, PosixFilePermissions.asFileAttribute(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE)));
+		} else {
+			// on Windows, files in the user's home directory are only readable by that user
+			Files.createFile(file);
+		}
+		Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/** The port this daemon is listening on. */
+	public int port() {
+		return server.getLocalPort();
+	}
+
+	/** Accepts requests until the daemon is {@link #close() closed} or receives {@link #STOP}. */
+	public void run() throws IOException {
+		try {
+			while (true) {
+				Socket socket = server.accept();
+				connections.execute(() -> handle(socket));
+			}
+		} catch (SocketException e) {
+			// thrown by accept() once the server has been closed
+			if (!server.isClosed()) {
+				throw e;
+			}
+		} finally {
+			connections.shutdown();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		Files.deleteIfExists(tokenFile.toPath());
+	}
+
+	/** Returns the warm Compiler for the given properties, creating it if necessary. */
+	private FreshMarkConsole.Compiler compilerFor(Map<String, String> properties) {
+		Map<String, String> snapshot = Collections.unmodifiableMap(new HashMap<>(properties));
+		synchronized (compilers) {
+			return compilers.computeIfAbsent(snapshot, FreshMarkConsole.Compiler::new);
+		}
+	}
+
+	@SuppressFBWarnings(value = "DE_MIGHT_IGNORE", justification = "if the client hangs up, there's nobody to tell")
+	private void handle(Socket socket) {
+		try (DataInputStream in = new DataInputStream(socket.getInputStream());
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+			// read the whole request, so that the client isn't cut off if it's rejected
+			byte[] clientToken = in.readUTF().getBytes(StandardCharsets.UTF_8);
+			File workingDir = new File(in.readUTF());
+			int numArgs = in.readInt();
+			if (numArgs < 0 || numArgs > MAX_ARGS) {
+				writeResponse(out, "Too many arguments.\n", 1);
+				return;
+			}
+			String[] args = new String[numArgs];
+			for (int i = 0; i < args.length; ++i) {
+				args[i] = in.readUTF();
+			}
+			if (!MessageDigest.isEqual(clientToken, token.getBytes(StandardCharsets.UTF_8))) {
+				writeResponse(out, "Invalid daemon token.\n", 1);
+				return;
+			}
+			String rejected = rejectedArgs(workingDir, args);
+			if (rejected != null) {
+				writeResponse(out, rejected + "\n", 1);
+				return;
+			}
+			if (args.length == 1 && args[0].equals(STOP)) {
+				writeResponse(out, "", 0);
+				close();
+				return;
+			}
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			int exitCode;
+			try (PrintStream err = new PrintStream(output, true, StandardCharsets.UTF_8.name())) {
+				exitCode = new FreshMarkConsole(args, err, workingDir, this::compilerFor).exitCode();
+			}
+			writeResponse(out, new String(output.toByteArray(), StandardCharsets.UTF_8), exitCode);
+		} catch (IOException e) {
+			// the client went away, nothing to do
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// already closed, nothing to do
+			}
+		}
+	}
+
+	/** Returns why the given arguments can't be run by the daemon, or null if they can. */
+	static String rejectedArgs(File workingDir, String[] args) throws IOException {
+		// -watch never returns, so the client would wait forever
+		if (Arrays.asList(args).contains("-watch")) {
+			return "The daemon can't -watch, run the console instead.";
+		}
+		Path root = realPath(workingDir.toPath());
+		for (int i = 0; i < args.length - 1; ++i) {
+			if (WRITTEN_FILE_ARGS.contains(args[i])) {
+				File file = new File(args[i + 1]);
+				Path path = realPath((file.isAbsolute() ? file : new File(workingDir, args[i + 1])).toPath());
+				if (!path.startsWith(root)) {
+					return "The daemon only writes " + args[i] + " within the working directory, not " + args[i + 1];
+				}
+			}
+		}
+		return null;
+	}
+
+	/** Returns the real path of the given path, whose last parts might not exist yet. */
+	private static Path realPath(Path path) throws IOException {
+		Path absolute = path.toAbsolutePath().normalize();
+		Path existing = absolute;
+		while (existing != null && !Files.exists(existing)) {
+			existing = existing.getParent();
+		}
+		return existing == null ? absolute : existing.toRealPath().resolve(existing.relativize(absolute));
+	}
+
+	private static void writeResponse(DataOutputStream out, String output, int exitCode) throws IOException {
+		byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.writeInt(exitCode);
+		out.flush();
+	}
+
+	/** Runs the daemon until it is stopped, {@code [-port N]}. */
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		if (args.length == 2 && args[0].equals("-port")) {
+			port = Integer.parseInt(args[1]);
+		} else if (args.length != 0) {
+			System.err.println("usage: freshmark-daemon [-port N]");
+			System.exit(1);
+		}
+		try (FreshMarkDaemon daemon = new FreshMarkDaemon(port)) {
+			System.err.println("freshmark daemon listening on port " + daemon.port());
+			daemon.run();
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the content of every file which was fresh after the last
+ * run, along with the properties it was compiled against, so that
+ * later runs can skip those files without starting a script engine.
+ * <p>
+ * Stored as one line per file: {@code contentHash propertiesHash path}.
+ * All methods besides {@link #load} and {@link #toBytes} are thread-safe.
+ */
+class FreshnessCache {
+	private static final String HEADER = "# freshmark cache, safe to delete";
+
+	/** Absolute path to "contentHash propertiesHash". */
+	private final Map<String, String> entries = new ConcurrentHashMap<>();
+
+	/** Loads the cache from the given file, or returns an empty cache if it doesn't exist. */
+	static FreshnessCache load(Path file) throws IOException {
+		FreshnessCache cache = new FreshnessCache();
+		if (Files.exists(file)) {
+			for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				String[] pieces = line.split(" ", 3);
+				if (pieces.length == 3) {
+					cache.entries.put(pieces[2], pieces[0] + " " + pieces[1]);
+				}
+			}
+		}
+		return cache;
+	}
+
+	/** Returns true if the given file had exactly this content after being compiled against the given properties. */
+	boolean isFresh(Path file, ByteBuffer content, String propertiesHash) {
+		return Objects.equals(entries.get(key(file)), hash(content) + " " + propertiesHash);
+	}
+
+	/** Records that the given content is fresh for the given properties. */
+	void markFresh(Path file, ByteBuffer content, String propertiesHash) {
+		entries.put(key(file), hash(content) + " " + propertiesHash);
+	}
+
+	/** Removes any record of the given file. */
+	void forget(Path file) {
+		entries.remove(key(file));
+	}
+
+	/** The serialized form of this cache. */
+	byte[] toBytes() {
+		StringBuilder builder = new StringBuilder(HEADER).append('\n');
+		new TreeMap<>(entries).forEach((path, hashes) -> builder.append(hashes).append(' ').append(path).append('\n'));
+		return builder.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static String key(Path file) {
+		return file.toAbsolutePath().normalize().toString();
+	}
+
+	/** Hashes the properties (in sorted order) along with anything else which affects the output, such as line endings. */
+	static String hashProperties(Map<String, ?> properties, String extra) {
+		StringBuilder builder = new StringBuilder(extra).append('\n');
+		new TreeMap<>(properties).forEach((key, value) -> builder.append(key).append('=').append(value).append('\n'));
+		return hash(ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/** Returns the hex-encoded SHA-256 of the remaining content of the given buffer (without changing its position). */
+	static String hash(ByteBuffer content) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(content.duplicate());
+			byte[] hash = digest.digest();
+			StringBuilder hex = new StringBuilder(hash.length * 2);
+			for (byte b : hash) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
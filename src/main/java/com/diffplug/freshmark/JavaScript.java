@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.script.Bindings;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+
+import com.diffplug.jscriptbox.ArityN;
+import com.diffplug.jscriptbox.Language;
+import com.diffplug.jscriptbox.javascript.Nashorn;
+
+/**
+ * The javascript engines which {@link FreshMark} can run on.
+ * <p>
+ * Nashorn is used when it's available, but it was removed from the JDK in Java 15,
+ * so any other JSR-223 javascript engine on the classpath (such as GraalJS or Rhino)
+ * can be used instead.
+ */
+public final class JavaScript {
+	private JavaScript() {}
+
+	/** The names of the engines which are tried after Nashorn, in order. */
+	static final List<String> FALLBACK_ENGINES = Arrays.asList("graal.js", "rhino");
+
+	/**
+	 * Returns Nashorn if it's available, or else the first of {@link #FALLBACK_ENGINES} which is.
+	 * If there are none, then the language throws a ScriptException when an engine is needed,
+	 * which only happens for scripts that {@link FreshMark} can't run on its own.
+	 * <p>
+	 * The available engines are only looked up the first time this is called.
+	 */
+	public static Language language() {
+		return DefaultLanguage.LANGUAGE;
+	}
+
+	/** Holds the default language, which is resolved when it's first needed. */
+	private static final class DefaultLanguage {
+		static final Language LANGUAGE = resolve();
+	}
+
+	/** Finds the best javascript engine on the classpath. */
+	private static Language resolve() {
+		List<String> available = new ScriptEngineManager().getEngineFactories().stream()
+				.map(ScriptEngineFactory::getNames)
+				.flatMap(List::stream)
+				.collect(Collectors.toList());
+		if (available.contains("nashorn")) {
+			return Nashorn.language();
+		}
+		for (String name : FALLBACK_ENGINES) {
+			if (available.contains(name)) {
+				return engineNamed(name);
+			}
+		}
+		return values -> {
+			throw new ScriptException("No javascript engine was found, add GraalJS or Rhino to the classpath");
+		};
+	}
+
+	/**
+	 * Returns a language which uses the JSR-223 engine with the given name.
+	 * <p>
+	 * Values are bound as globals, and functions become javascript functions which call
+	 * the java function, so they work on any engine which can call methods on java objects.
+	 */
+	public static Language engineNamed(String name) {
+		return values -> {
+			ScriptEngine engine = new ScriptEngineManager().getEngineByName(name);
+			if (engine == null) {
+				throw new ScriptException("No script engine named '" + name + "'");
+			}
+			Bindings bindings = engine.getBindings(ScriptContext.ENGINE_SCOPE);
+			if (engine.getFactory().getNames().contains("graal.js")) {
+				// GraalJS only lets scripts call methods on java objects if it's allowed
+				bindings.put("polyglot.js.allowHostAccess", true);
+			}
+			StringBuilder functions = new StringBuilder();
+			values.forEach((key, value) -> {
+				int arity = arity(value);
+				if (arity < 0) {
+					bindings.put(key, value);
+				} else {
+					String hidden = "__freshmark_" + key;
+					bindings.put(hidden, value);
+					String args = IntStream.range(0, arity).mapToObj(i -> "a" + i).collect(Collectors.joining(", "));
+					functions.append("var " + key + " = function(" + args + ") { return " + hidden + ".apply(" + args + "); };\n");
+				}
+			});
+			engine.eval(functions.toString());
+			return engine;
+		};
+	}
+
+	/**
+	 * Returns true if scripts on the given engine can read the variables in its
+	 * {@link ScriptContext#GLOBAL_SCOPE} bindings, which is only known to be true of Nashorn.
+	 */
+	static boolean resolvesGlobalScope(ScriptEngine engine) {
+		return engine.getFactory().getNames().contains("nashorn");
+	}
+
+	/** Returns the number of arguments taken by the given function, or -1 if it isn't a function. */
+	private static int arity(Object value) {
+		if (value instanceof ArityN.Func0 || value instanceof ArityN.Void0) {
+			return 0;
+		} else if (value instanceof ArityN.Func1 || value instanceof ArityN.Void1) {
+			return 1;
+		} else if (value instanceof ArityN.Func2 || value instanceof ArityN.Void2) {
+			return 2;
+		} else if (value instanceof ArityN.Func3 || value instanceof ArityN.Void3) {
+			return 3;
+		} else if (value instanceof ArityN.Func4 || value instanceof ArityN.Void4) {
+			return 4;
+		} else {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.Arrays;
+
+/**
+ * Maps character offsets within a document to line and column numbers.
+ * <p>
+ * The start of every line is found in a single pass when the index
+ * is created, so that every lookup afterwards is a binary search.
+ * Lines and columns are both 1-based, and only {@code \n} ends a line.
+ */
+public class LineIndex {
+	/** Offset of the first character of each line, in increasing order. */
+	private final int[] lineStarts;
+	private final int length;
+
+	private LineIndex(int[] lineStarts, int length) {
+		this.lineStarts = lineStarts;
+		this.length = length;
+	}
+
+	/** Creates an index of the lines in the given text. */
+	public static LineIndex of(CharSequence text) {
+		int[] lineStarts = new int[16];
+		int numLines = 1;
+		for (int i = 0; i < text.length(); ++i) {
+			if (text.charAt(i) == '\n') {
+				if (numLines == lineStarts.length) {
+					lineStarts = Arrays.copyOf(lineStarts, numLines * 2);
+				}
+				lineStarts[numLines++] = i + 1;
+			}
+		}
+		return new LineIndex(Arrays.copyOf(lineStarts, numLines), text.length());
+	}
+
+	/** The number of lines in the text (an empty text has one line). */
+	public int lineCount() {
+		return lineStarts.length;
+	}
+
+	/** Returns the line which contains the given offset. */
+	public int line(int offset) {
+		checkOffset(offset);
+		int idx = Arrays.binarySearch(lineStarts, offset);
+		// an exact match is the start of a line, otherwise we're within the line before the insertion point
+		return idx >= 0 ? idx + 1 : -(idx + 1);
+	}
+
+	/** Returns the column of the given offset within its line. */
+	public int column(int offset) {
+		return offset - lineStarts[line(offset) - 1] + 1;
+	}
+
+	/** Returns the offset of the first character of the given line. */
+	public int lineStart(int line) {
+		if (line < 1 || line > lineStarts.length) {
+			throw new IndexOutOfBoundsException("line " + line + " is not within 1 to " + lineStarts.length);
+		}
+		return lineStarts[line - 1];
+	}
+
+	private void checkOffset(int offset) {
+		// the offset just past the end is allowed, since it's where an unterminated construct would end
+		if (offset < 0 || offset > length) {
+			throw new IndexOutOfBoundsException("offset " + offset + " is not within 0 to " + length);
+		}
+	}
+}
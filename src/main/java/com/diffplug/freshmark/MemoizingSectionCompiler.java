@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.Objects;
+
+/**
+ * A {@link Parser.SectionCompiler} which remembers the output of another compiler,
+ * so that identical sections are only compiled once.
+ * <p>
+ * Outputs are keyed by the section, script, and input, so the delegate must always
+ * compile them with the same properties (use a new memoizer for new properties).  The
+ * cache is bounded, and evicts the least-recently-used output.  Memoization
+ * is only correct for scripts which depend on nothing but their input and
+ * properties, and any warnings emitted by the delegate are only emitted for
+ * the first compile of a given section.  All methods are thread-safe.
+ */
+public class MemoizingSectionCompiler implements Parser.SectionCompiler {
+	private final Parser.SectionCompiler delegate;
+	private final Store store;
+
+	/**
+	 * @param delegate	the compiler whose output will be remembered
+	 * @param maxSize	the maximum number of outputs to remember
+	 */
+	public MemoizingSectionCompiler(Parser.SectionCompiler delegate, int maxSize) {
+		this.delegate = Objects.requireNonNull(delegate);
+		this.store = new Store(maxSize);
+	}
+
+	@Override
+	public String compileSection(String section, String script, String input) {
+		Key key = new Key(section, script, input);
+		String output = store.get(key);
+		if (output == null) {
+			// compile outside the lock, so that other threads aren't blocked
+			output = delegate.compileSection(section, script, input);
+			store.put(key, output);
+		} else {
+			CompileMetrics.Section metrics = CompileMetrics.current();
+			if (metrics != null) {
+				metrics.memoized = true;
+			}
+		}
+		return output;
+	}
+
+	/** The number of sections whose output was remembered. */
+	public long hits() {
+		return store.hits();
+	}
+
+	/** The number of sections which had to be compiled. */
+	public long misses() {
+		return store.misses();
+	}
+
+	/** The outputs, along with their hit and miss counts. */
+	private static class Store {
+		private final LruCache<Key, String> outputs;
+		private long hits, misses;
+
+		Store(int maxSize) {
+			outputs = new LruCache<>(maxSize);
+		}
+
+		synchronized String get(Key key) {
+			String output = outputs.get(key);
+			if (output != null) {
+				++hits;
+			} else {
+				++misses;
+			}
+			return output;
+		}
+
+		synchronized void put(Key key, String output) {
+			outputs.put(key, output);
+		}
+
+		synchronized long hits() {
+			return hits;
+		}
+
+		synchronized long misses() {
+			return misses;
+		}
+	}
+
+	/** A section/script/input combination, with its hash computed up-front. */
+	private static class Key {
+		final String section, script, input;
+		final int hash;
+
+		Key(String section, String script, String input) {
+			this.section = section;
+			this.script = script;
+			this.input = input;
+			this.hash = Objects.hash(section, script, input);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other == this) {
+				return true;
+			} else if (other instanceof Key) {
+				Key o = (Key) other;
+				// the input is null when the open and close tags are adjacent
+				return hash == o.hash
+						&& Objects.equals(section, o.section)
+						&& Objects.equals(script, o.script)
+						&& Objects.equals(input, o.input);
+			} else {
+				return false;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+}
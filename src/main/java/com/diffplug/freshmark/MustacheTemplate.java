@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A mustache template which has been parsed into its literal segments and {@code {{key}}} slots,
+ * so that it can be rendered many times without being rescanned.
+ * <p>
+ * A key is everything between a {@code {{} and the first {@code }}} which follows it.
+ * A {@code {{} with no matching {@code }}} is left as-is.
+ */
+public final class MustacheTemplate {
+	/** Literal text, where a key goes between each one (so there is one more literal than key). */
+	private final String[] literals;
+	private final String[] keys;
+	private final int literalLength;
+
+	private MustacheTemplate(String[] literals, String[] keys) {
+		this.literals = literals;
+		this.keys = keys;
+		int length = 0;
+		for (String literal : literals) {
+			length += literal.length();
+		}
+		this.literalLength = length;
+	}
+
+	/** Parses the given template. */
+	public static MustacheTemplate compile(String template) {
+		List<String> literals = new ArrayList<>();
+		List<String> keys = new ArrayList<>();
+		int last = 0;
+		while (true) {
+			int open = template.indexOf("{{", last);
+			if (open < 0) {
+				break;
+			}
+			int close = template.indexOf("}}", open + 2);
+			if (close < 0) {
+				break;
+			}
+			literals.add(template.substring(last, open));
+			keys.add(template.substring(open + 2, close));
+			last = close + 2;
+		}
+		literals.add(template.substring(last));
+		return new MustacheTemplate(literals.toArray(new String[literals.size()]), keys.toArray(new String[keys.size()]));
+	}
+
+	/** The keys in this template, in order of appearance (including duplicates). */
+	public List<String> keys() {
+		return Collections.unmodifiableList(Arrays.asList(keys));
+	}
+
+	/** Renders this template, using the given function to get the value of each key. */
+	public String render(Function<String, String> keyToValue) {
+		if (keys.length == 0) {
+			return literals[0];
+		}
+		String[] values = new String[keys.length];
+		int length = literalLength;
+		for (int i = 0; i < keys.length; ++i) {
+			values[i] = keyToValue.apply(keys[i]);
+			length += String.valueOf(values[i]).length();
+		}
+		StringBuilder result = new StringBuilder(length);
+		for (int i = 0; i < keys.length; ++i) {
+			result.append(literals[i]);
+			result.append(values[i]);
+		}
+		result.append(literals[keys.length]);
+		return result.toString();
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable FreshMark document, split into the body text
+ * outside of any section, and the sections themselves.
+ * <p>
+ * Created by {@link Parser#parse(String)}, and compiled by
+ * {@link Parser#compile(ParsedDocument, Parser.SectionCompiler)},
+ * so that a document which is compiled many times (e.g. with
+ * different properties) is only parsed once.  It is serializable,
+ * so that it can be cached between runs.
+ * <p>
+ * Offsets are relative to the start of the raw document.  The tag
+ * delimiters aren't known to the {@link Parser} which created the
+ * document, so a section spans from the start of the content of its
+ * open tag to the end of the content of its close tag.
+ */
+public final class ParsedDocument implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final String raw;
+	private final List<Node> nodes;
+	private final List<Section> sections;
+	/** Built the first time we need to report an error. */
+	private transient LineIndex lines;
+
+	ParsedDocument(String raw, List<Node> nodes) {
+		this.raw = raw;
+		this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+		List<Section> sections = new ArrayList<>();
+		for (Node node : nodes) {
+			if (node instanceof Section) {
+				sections.add((Section) node);
+			}
+		}
+		this.sections = Collections.unmodifiableList(sections);
+	}
+
+	/** The raw document. */
+	public String raw() {
+		return raw;
+	}
+
+	/** The bodies and sections of the document, in order. */
+	public List<Node> nodes() {
+		return nodes;
+	}
+
+	/** The sections of the document, in order. */
+	public List<Section> sections() {
+		return sections;
+	}
+
+	/** Returns the line of the given offset. */
+	int line(int offset) {
+		LineIndex lines = this.lines;
+		if (lines == null) {
+			lines = LineIndex.of(raw);
+			this.lines = lines;
+		}
+		return lines.line(offset);
+	}
+
+	/** A body or a section of the document. */
+	public abstract static class Node implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final String raw;
+		final int start, end;
+
+		Node(String raw, int start, int end) {
+			this.raw = raw;
+			this.start = start;
+			this.end = end;
+		}
+
+		/** Offset of the start of this node. */
+		public int start() {
+			return start;
+		}
+
+		/** Offset just past the end of this node. */
+		public int end() {
+			return end;
+		}
+	}
+
+	/** Text outside of any section, which is copied to the output as-is. */
+	public static final class Body extends Node {
+		private static final long serialVersionUID = 1L;
+
+		Body(String raw, int start, int end) {
+			super(raw, start, end);
+		}
+
+		/** The text of this body. */
+		public String text() {
+			return raw.substring(start, end);
+		}
+	}
+
+	/** A section, whose input is replaced by the output of its script. */
+	public static final class Section extends Node {
+		private static final long serialVersionUID = 1L;
+
+		final String name, script;
+		/** The range of the input, which is empty if there isn't one. */
+		final int inputStart, inputEnd;
+		/** Start of the content of the close tag. */
+		final int closeTagStart;
+
+		Section(String raw, int start, String name, String script, int inputStart, int inputEnd, int closeTagStart, int end) {
+			super(raw, start, end);
+			this.name = name;
+			this.script = script;
+			this.inputStart = inputStart;
+			this.inputEnd = inputEnd;
+			this.closeTagStart = closeTagStart;
+		}
+
+		/** The name of this section. */
+		public String name() {
+			return name;
+		}
+
+		/** The script of this section, exactly as it appears in the open tag. */
+		public String script() {
+			return script;
+		}
+
+		/** The text between the open and close tags, which is null if they are adjacent. */
+		public String input() {
+			return inputStart == inputEnd ? null : raw.substring(inputStart, inputEnd);
+		}
+
+		/** Offset of the start of the input (or the end of the content of the open tag, if there isn't any input). */
+		public int inputStart() {
+			return inputStart;
+		}
+
+		/** Offset just past the end of the input. */
+		public int inputEnd() {
+			return inputEnd;
+		}
+	}
+}
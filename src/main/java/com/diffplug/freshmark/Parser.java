@@ -15,7 +15,17 @@
  */
 package com.diffplug.freshmark;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
+import java.util.function.IntUnaryOperator;
 
 import javax.script.ScriptException;
 
@@ -38,10 +48,17 @@ public abstract class Parser {
 	@FunctionalInterface
 	protected interface ChunkHandler {
 		/**
+		 * A body may be passed as several consecutive chunks, which should be treated as though they were one.
+		 * 
 		 * @param startIdxFromRaw 	index of the start of content, relative to the beginning of the raw input
-		 * @param content			the content to be handled
+		 * @param content			the content to be handled, which may be a view into the raw input rather than a copy
 		 */
-		void handle(int startIdxFromRaw, String content) throws ScriptException;
+		void handle(int startIdxFromRaw, CharSequence content) throws ScriptException;
+
+		/** Handles a chunk which has already been copied into a String, for the parsers which were written before chunks could be views. */
+		default void handle(int startIdxFromRaw, String content) throws ScriptException {
+			handle(startIdxFromRaw, (CharSequence) content);
+		}
 	}
 
 	/**
@@ -57,8 +74,19 @@ public abstract class Parser {
 	/** Reassembles a section/script/output chunk back into the full file. */
 	protected abstract String reassemble(String section, String script, String output);
 
+	/**
+	 * Returns false if the given input certainly doesn't contain any tags, in which case it is
+	 * returned unchanged without being parsed.  The default implementation always returns true.
+	 */
+	protected boolean mayContainTags(String fullInput) {
+		return true;
+	}
+
 	/**
 	 * Compiles an input string to an output string, using the given compiler to compile each section.
+	 * <p>
+	 * If the input doesn't contain any tags, then the input instance itself is returned, so callers
+	 * can tell that there was nothing to do with {@code output == fullInput}.
 	 * 
 	 * @param fullInput	the raw input string
 	 * @param compiler	used to compile each section
@@ -66,34 +94,360 @@ public abstract class Parser {
 	 * @throws ScriptException 
 	 */
 	public String compile(String fullInput, SectionCompiler compiler) throws ScriptException {
+		return compile(fullInput, compiler, null);
+	}
+
+	/**
+	 * Compiles an input string to an output string, using the given compiler to compile each section,
+	 * and passing the timings of the document and each of its sections to the given listener.
+	 * 
+	 * @param fullInput	the raw input string
+	 * @param compiler	used to compile each section
+	 * @param listener	receives the metrics once the document has compiled, or null to skip measuring
+	 * @return 			the compiled output string
+	 * @throws ScriptException 
+	 */
+	public String compile(String fullInput, SectionCompiler compiler, CompileMetrics.Listener listener) throws ScriptException {
+		return compile(fullInput, compiler, listener, null);
+	}
+
+	/**
+	 * Compiles an input string to an output string, using the given compiler to compile each section
+	 * on the given executor.
+	 * <p>
+	 * The whole document is parsed first, submitting each section to the executor as soon as its close
+	 * tag is found, and then the output is reassembled in document order.  The compiler must be safe to
+	 * call from several threads at once, and the sections must not depend on each other (e.g. through
+	 * global variables which one script sets and another reads).  If several sections fail, the error
+	 * is the one which compiling them in order would have thrown.
+	 * 
+	 * @param fullInput	the raw input string
+	 * @param compiler	used to compile each section
+	 * @param listener	receives the metrics once the document has compiled, or null to skip measuring
+	 * @param executor	compiles the sections, or null to compile them one at a time on the calling thread
+	 * @return 			the compiled output string, which is {@code fullInput} itself if it doesn't contain any tags
+	 * @throws ScriptException 
+	 */
+	public String compile(String fullInput, SectionCompiler compiler, CompileMetrics.Listener listener, Executor executor) throws ScriptException {
+		CompileMetrics.Document metrics = listener == null ? null : new CompileMetrics.Document();
+		if (!mayContainTags(fullInput)) {
+			if (listener != null) {
+				metrics.charsIn = fullInput.length();
+				metrics.charsOut = fullInput.length();
+				listener.documentCompiled(metrics);
+			}
+			return fullInput;
+		}
 		StringBuilder result = new StringBuilder(fullInput.length() * 3 / 2);
+		/** Built the first time we need to report an error. */
+		class LazyLineIndex implements IntUnaryOperator {
+			LineIndex lines;
+
+			@Override
+			public int applyAsInt(int offset) {
+				if (lines == null) {
+					lines = LineIndex.of(fullInput);
+				}
+				return lines.line(offset);
+			}
+		}
+		try {
+			compile(result, compiler, new LazyLineIndex(), (body, tag) -> bodyAndTags(fullInput, body, tag), metrics, executor);
+		} catch (IOException e) {
+			// a StringBuilder never throws
+			throw new IllegalStateException(e);
+		}
+		if (listener != null) {
+			metrics.charsIn = fullInput.length();
+			metrics.charsOut = result.length();
+			listener.documentCompiled(metrics);
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Compiles from the given reader to the given writer, using the given compiler to compile each section.
+	 * <p>
+	 * The default implementation reads the entire input before compiling it, but subclasses
+	 * (such as {@link ParserIntronExon}) may write each body as soon as it has been read,
+	 * so that only the content of the currently open section is held in memory.
+	 * Neither the reader nor the writer is closed.
+	 * 
+	 * @param input		the raw input
+	 * @param output	where the compiled output is written
+	 * @param compiler	used to compile each section
+	 */
+	public void compile(Reader input, Writer output, SectionCompiler compiler) throws ScriptException, IOException {
+		StringBuilder builder = new StringBuilder();
+		char[] buffer = new char[8192];
+		int numRead;
+		while ((numRead = input.read(buffer)) != -1) {
+			builder.append(buffer, 0, numRead);
+		}
+		output.write(compile(builder.toString(), compiler));
+	}
+
+	/**
+	 * Parses the given input into a document, which can then be compiled any number of times
+	 * by {@link #compile(ParsedDocument, SectionCompiler)} without parsing it again.
+	 * 
+	 * @param fullInput	the raw input string
+	 * @return 			the bodies and sections of the input
+	 * @throws ScriptException 
+	 */
+	public ParsedDocument parse(String fullInput) throws ScriptException {
+		List<ParsedDocument.Node> nodes = new ArrayList<>();
+		if (!mayContainTags(fullInput)) {
+			if (!fullInput.isEmpty()) {
+				nodes.add(new ParsedDocument.Body(fullInput, 0, fullInput.length()));
+			}
+			return new ParsedDocument(fullInput, nodes);
+		}
+		/** Maintains the parse state, a body may arrive as several consecutive chunks. */
+		@edu.umd.cs.findbugs.annotations.SuppressFBWarnings(value = "SIC_INNER_SHOULD_BE_STATIC_ANON", justification = "It's a bug in FindBugs.  TODO: report")
+		class Builder {
+			/** The section for which we're looking for a close tag, and its script. */
+			String section, script;
+			/** Start and end of the content of the open tag of the section. */
+			int sectionStart, openTagEnd;
+			/** The range of the current body (or the section's input), which is empty if there's no body yet. */
+			int bodyStart = -1, bodyEnd = -1;
+			/** Built the first time we need to report an error. */
+			LineIndex lines;
+
+			void body(int start, CharSequence content) {
+				if (bodyStart < 0) {
+					bodyStart = start;
+				}
+				bodyEnd = start + content.length();
+			}
+
+			void tag(int start, CharSequence chunk) {
+				try {
+					tagOrThrow(start, chunk.toString());
+				} catch (IllegalArgumentException e) {
+					if (lines == null) {
+						lines = LineIndex.of(fullInput);
+					}
+					throw new RuntimeException("Error on line " + lines.line(start) + ": " + e.getMessage(), e);
+				}
+			}
+
+			void tagOrThrow(int start, String tag) {
+				if (section == null) {
+					// we were looking for an open tag, and now we've got one
+					OpenTag open = OpenTag.parse(tag);
+					if (bodyStart >= 0) {
+						nodes.add(new ParsedDocument.Body(fullInput, bodyStart, bodyEnd));
+					}
+					section = open.section;
+					script = open.script;
+					sectionStart = start;
+					openTagEnd = start + tag.length();
+					bodyStart = bodyEnd = -1;
+				} else {
+					// we were looking for a close tag
+					checkCloseTag(section, tag);
+					// an empty input starts where the open tag ends
+					if (bodyStart < 0) {
+						bodyStart = bodyEnd = openTagEnd;
+					}
+					nodes.add(new ParsedDocument.Section(fullInput, sectionStart, section, script, bodyStart, bodyEnd, start, start + tag.length()));
+					section = null;
+					script = null;
+					bodyStart = bodyEnd = -1;
+				}
+			}
+
+			void finish() {
+				checkClosed(section);
+				if (bodyStart >= 0) {
+					nodes.add(new ParsedDocument.Body(fullInput, bodyStart, bodyEnd));
+				}
+			}
+		}
+		Builder builder = new Builder();
+		bodyAndTags(fullInput, builder::body, builder::tag);
+		builder.finish();
+		return new ParsedDocument(fullInput, nodes);
+	}
+
+	/**
+	 * Compiles a parsed document to an output string, using the given compiler to compile each section.
+	 * The output and errors are the same as compiling the raw input with {@link #compile(String, SectionCompiler)}.
+	 * 
+	 * @param document	a document which was parsed by {@link #parse(String)}
+	 * @param compiler	used to compile each section
+	 * @return 			the compiled output string, which is the raw input itself if the document doesn't have any sections
+	 * @throws ScriptException 
+	 */
+	public String compile(ParsedDocument document, SectionCompiler compiler) throws ScriptException {
+		if (document.sections().isEmpty()) {
+			return document.raw();
+		}
+		String raw = document.raw();
+		StringBuilder result = new StringBuilder(raw.length() * 3 / 2);
+		for (ParsedDocument.Node node : document.nodes()) {
+			if (node instanceof ParsedDocument.Body) {
+				result.append(raw, node.start, node.end);
+			} else {
+				ParsedDocument.Section section = (ParsedDocument.Section) node;
+				String compiled;
+				try {
+					compiled = compiler.compileSection(section.name, section.script, section.input());
+				} catch (RuntimeException e) {
+					// script errors are relative to the input (or the open tag, if there's no input)
+					int startOfPreviousChunk = section.inputStart == section.inputEnd ? section.start : section.inputStart;
+					rethrow(e, document::line, startOfPreviousChunk, section.closeTagStart);
+					throw new IllegalStateException("rethrow always throws");
+				}
+				result.append(reassemble(section.name, section.script, compiled));
+			}
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Rethrows the given error with the line it came from.  Script errors are relative to the
+	 * chunk which precedes the close tag, and every other error is at the start of the chunk.
+	 */
+	static void rethrow(Throwable e, IntUnaryOperator lineOf, int startOfPreviousChunk, int startOfChunk) throws ScriptException {
+		if (e.getCause() instanceof ScriptException) {
+			ScriptException script = (ScriptException) e.getCause();
+			int problemStart = script.getLineNumber() + lineOf.applyAsInt(startOfPreviousChunk) - 2;
+			ScriptException wrappedScript = new ScriptException(script.getCause().getMessage(), script.getFileName(), problemStart, script.getColumnNumber());
+			wrappedScript.initCause(script.getCause());
+			throw wrappedScript;
+		} else {
+			int problemStart = lineOf.applyAsInt(startOfChunk);
+			throw new RuntimeException("Error on line " + problemStart + ": " + e.getMessage(), e);
+		}
+	}
+
+	/** The content of an open tag, split into its section name and script. */
+	static final class OpenTag {
+		/** The first line of the tag, trimmed. */
+		final String section;
+		/** Everything after the first line of the tag. */
+		final String script;
+
+		private OpenTag(String section, String script) {
+			this.section = section;
+			this.script = script;
+		}
+
+		/** Splits the content of an open tag, throwing an IllegalArgumentException if it doesn't have a script. */
+		static OpenTag parse(String tag) {
+			int firstLine = tag.indexOf('\n');
+			if (firstLine < 0 || tag.length() <= firstLine) {
+				throw new IllegalArgumentException("Section doesn't contain a script.");
+			}
+			return new OpenTag(tag.substring(0, firstLine).trim(), tag.substring(firstLine + 1));
+		}
+	}
+
+	/** Throws an IllegalArgumentException if the content of the given tag doesn't close the given section. */
+	static void checkCloseTag(String section, String tag) {
+		if (!tag.trim().equals("/" + section)) {
+			throw new IllegalArgumentException("Expecting '/" + section + "'");
+		}
+	}
+
+	/** Throws an IllegalArgumentException if the document ended while the given section was open (non-null). */
+	static void checkClosed(String section) {
+		if (section != null) {
+			throw new IllegalArgumentException("Ended without a close tag for '" + section + "'");
+		}
+	}
+
+	/** Passes every chunk of a document to the given handlers. */
+	@FunctionalInterface
+	protected interface ChunkSource {
+		/** Same contract as {@link Parser#bodyAndTags(String, ChunkHandler, ChunkHandler)}, an {@link UncheckedIOException} may be thrown if the document can't be read. */
+		void bodyAndTags(ChunkHandler body, ChunkHandler tag) throws ScriptException;
+	}
+
+	/**
+	 * Compiles the chunks from the given source, appending the output to the given result.
+	 * 
+	 * @param result	where the compiled output is appended
+	 * @param compiler	used to compile each section
+	 * @param lineOf	returns the line number of the chunk which starts at the given offset, only called when there's an error
+	 * @param source	the chunks of the document
+	 */
+	protected void compile(Appendable result, SectionCompiler compiler, IntUnaryOperator lineOf, ChunkSource source) throws ScriptException, IOException {
+		compile(result, compiler, lineOf, source, null, null);
+	}
+
+	/**
+	 * Compiles the chunks from the given source, appending the output to the given result,
+	 * and recording the time spent on each section in the given metrics (unless it's null).
+	 * <p>
+	 * If the executor is null, each section is compiled as soon as its close tag is found.  Otherwise,
+	 * each section is submitted to the executor as soon as its close tag is found, and the output is
+	 * reassembled in document order once the whole document has been parsed.
+	 */
+	void compile(Appendable result, SectionCompiler compiler, IntUnaryOperator lineOf, ChunkSource source, CompileMetrics.Document metrics, Executor executor) throws ScriptException, IOException {
 		/** Associates errors with the part of the input that caused it. */
 		@edu.umd.cs.findbugs.annotations.SuppressFBWarnings(value = "SIC_INNER_SHOULD_BE_STATIC_ANON", justification = "It's a bug in FindBugs.  TODO: report")
 		class ErrorFormatter {
-			int lineOfLastTag;
+			/** Start of the most recently handled chunk (a body split over several chunks counts as one). */
+			int startOfLastChunk;
+			/** Start of the chunk which is currently being handled. */
+			int startOfCurrentChunk;
+			/** True if the most recently handled chunk was a body. */
+			boolean lastWasBody;
 
-			ChunkHandler wrap(Consumer<String> action, boolean isTag) {
-				return (int startIdxFromRaw, String content) -> {
+			ChunkHandler wrap(Consumer<CharSequence> action, boolean isTag) {
+				return (int startIdxFromRaw, CharSequence content) -> {
 					try {
+						startOfCurrentChunk = startIdxFromRaw;
 						action.accept(content);
-						lineOfLastTag = countNewlines(fullInput.substring(0, startIdxFromRaw));
-					} catch (Throwable e) {
-						if (e.getCause() instanceof ScriptException) {
-							ScriptException script = (ScriptException) e.getCause();
-							int problemStart = script.getLineNumber() + lineOfLastTag - 1;
-							ScriptException wrappedScript = new ScriptException(script.getCause().getMessage(), script.getFileName(), problemStart, script.getColumnNumber());
-							wrappedScript.initCause(script.getCause());
-							throw wrappedScript;
-						} else {
-							long problemStart = 1 + countNewlines(fullInput.substring(0, startIdxFromRaw));
-							throw new RuntimeException("Error on line " + problemStart + ": " + e.getMessage(), e);
+						if (isTag || !lastWasBody) {
+							startOfLastChunk = startIdxFromRaw;
 						}
+						lastWasBody = !isTag;
+					} catch (UncheckedIOException e) {
+						// problems with the output aren't problems with the input
+						throw e;
+					} catch (Throwable e) {
+						rethrow(e, startOfLastChunk, startIdxFromRaw);
 					}
 				};
 			}
 
-			private int countNewlines(String str) {
-				return (int) str.codePoints().filter(c -> c == '\n').count();
+			/** Rethrows the given error with the line it came from. */
+			void rethrow(Throwable e, int startOfPreviousChunk, int startOfChunk) throws ScriptException {
+				Parser.rethrow(e, lineOf, startOfPreviousChunk, startOfChunk);
+			}
+		}
+		ErrorFormatter error = new ErrorFormatter();
+
+		/** A section which has been submitted to the executor, but whose output may not be ready. */
+		class Pending {
+			final String section, script;
+			/** Where the section's errors will be reported. */
+			final int startOfPreviousChunk, startOfChunk;
+			final CompileMetrics.Section measured;
+			final CompletableFuture<String> output;
+
+			Pending(String section, String script, CompileMetrics.Section measured, CompletableFuture<String> output) {
+				this.section = section;
+				this.script = script;
+				this.startOfPreviousChunk = error.startOfLastChunk;
+				this.startOfChunk = error.startOfCurrentChunk;
+				this.measured = measured;
+				this.output = output;
+			}
+
+			/** Waits for the output, and throws its error (if there was one) as though it was compiled in order. */
+			String await() throws ScriptException {
+				try {
+					return output.join();
+				} catch (CompletionException e) {
+					error.rethrow(e.getCause(), startOfPreviousChunk, startOfChunk);
+					throw new IllegalStateException("rethrow always throws");
+				}
 			}
 		}
 
@@ -104,46 +458,59 @@ public abstract class Parser {
 			String section;
 			/** The script for that section. */
 			String script;
-			/** The raw input which will be passed to the script. */
-			String input;
+			/** The raw input which will be passed to the script, accumulated until the close tag. */
+			StringBuilder input;
+			/** When the open tag was read, only set if we're measuring. */
+			long openNanos;
+			/** If there's an executor, the output so far, as literal text and the sections which are being compiled. */
+			final List<Object> deferred = executor == null ? null : new ArrayList<>();
 
-			void body(String body) {
-				assert(input == null);
+			void body(CharSequence body) {
 				if (section == null) {
 					assert(script == null);
-					result.append(body);
+					append(body);
 				} else {
 					assert(script != null);
-					input = body;
+					if (input == null) {
+						input = new StringBuilder(body.length());
+					}
+					input.append(body);
 				}
 			}
 
-			void tag(String tag) {
+			void tag(CharSequence chunk) {
+				String tag = chunk.toString();
 				if (section == null) {
 					assert(script == null);
 					assert(input == null);
 					// we were looking for an open tag, and now we've got one
-					int firstLine = tag.indexOf('\n');
-					if (firstLine < 0 || tag.length() <= firstLine) {
-						throw new IllegalArgumentException("Section doesn't contain a script.");
+					OpenTag open = OpenTag.parse(tag);
+					section = open.section;
+					script = open.script;
+					if (metrics != null) {
+						openNanos = System.nanoTime();
 					}
-					// the section name is the first line (trimmed)
-					section = tag.substring(0, firstLine).trim();
-					// the script is the second line
-					script = tag.substring(firstLine + 1);
 				} else {
 					assert(script != null);
-					assert(input != null);
-					// we were looking for a close tag
-					String closing = tag.trim();
-					if (!closing.equals("/" + section)) {
-						// bail if we didn't find it
-						throw new IllegalArgumentException("Expecting '/" + section + "'");
-					}
+					// we were looking for a close tag (the input is null if the tags are adjacent)
+					checkCloseTag(section, tag);
 					// and we found one!  compile it and accumulate the result
-					String compiled = compiler.compileSection(section, script, input);
-					String reassembled = reassemble(section, script, compiled);
-					result.append(reassembled);
+					String body = input == null ? null : input.toString();
+					CompileMetrics.Section measured = null;
+					if (metrics != null) {
+						measured = metrics.newSection(section);
+						measured.parseNanos = System.nanoTime() - openNanos;
+						measured.charsIn = body == null ? 0 : body.length();
+					}
+					if (executor == null) {
+						String compiled = compileSection(measured, section, script, body);
+						appendReassembled(measured, section, script, compiled);
+					} else {
+						String sectionFinal = section;
+						String scriptFinal = script;
+						CompileMetrics.Section measuredFinal = measured;
+						deferred.add(new Pending(section, script, measured, CompletableFuture.supplyAsync(() -> compileSection(measuredFinal, sectionFinal, scriptFinal, body), executor)));
+					}
 					// wipe the state
 					section = null;
 					script = null;
@@ -151,16 +518,111 @@ public abstract class Parser {
 				}
 			}
 
+			/** Compiles a single section, recording how long it took if we're measuring. */
+			String compileSection(CompileMetrics.Section measured, String section, String script, String body) {
+				if (measured == null) {
+					return compiler.compileSection(section, script, body);
+				}
+				long start = System.nanoTime();
+				// lets the compiler fill in the details
+				CompileMetrics.Section previous = CompileMetrics.setCurrent(measured);
+				try {
+					String compiled = compiler.compileSection(section, script, body);
+					measured.charsOut = compiled == null ? 0 : compiled.length();
+					return compiled;
+				} finally {
+					CompileMetrics.setCurrent(previous);
+					measured.compileNanos = System.nanoTime() - start;
+				}
+			}
+
+			/** Reassembles a compiled section into the result, recording how long it took if we're measuring. */
+			void appendReassembled(CompileMetrics.Section measured, String section, String script, String compiled) {
+				long start = measured == null ? 0 : System.nanoTime();
+				appendToResult(reassemble(section, script, compiled));
+				if (measured != null) {
+					measured.reassembleNanos = System.nanoTime() - start;
+				}
+			}
+
+			void append(CharSequence content) {
+				if (deferred == null) {
+					appendToResult(content);
+				} else {
+					// the content might be a view into a buffer which will be reused, so copy it
+					Object last = deferred.isEmpty() ? null : deferred.get(deferred.size() - 1);
+					if (last instanceof StringBuilder) {
+						((StringBuilder) last).append(content);
+					} else {
+						deferred.add(new StringBuilder(content));
+					}
+				}
+			}
+
+			void appendToResult(CharSequence content) {
+				try {
+					result.append(content);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+
 			void finish() {
-				if (section != null) {
-					throw new IllegalArgumentException("Ended without a close tag for '" + section + "'");
+				checkClosed(section);
+			}
+
+			/** Waits for every deferred section, and appends everything to the result in document order. */
+			void finishDeferred() throws ScriptException {
+				for (Object segment : deferred) {
+					if (segment instanceof Pending) {
+						Pending pending = (Pending) segment;
+						appendReassembled(pending.measured, pending.section, pending.script, pending.await());
+					} else {
+						appendToResult((CharSequence) segment);
+					}
+				}
+			}
+
+			/** Throws the error of the first deferred section which failed, if any. */
+			void throwFirstDeferredError() throws ScriptException {
+				for (Object segment : deferred) {
+					if (segment instanceof Pending) {
+						((Pending) segment).await();
+					}
 				}
 			}
 		}
-		ErrorFormatter error = new ErrorFormatter();
 		State state = new State();
-		bodyAndTags(fullInput, error.wrap(state::body, false), error.wrap(state::tag, true));
-		state.finish();
-		return result.toString();
+		long start = metrics == null ? 0 : System.nanoTime();
+		try {
+			try {
+				source.bodyAndTags(error.wrap(state::body, false), error.wrap(state::tag, true));
+				state.finish();
+			} catch (RuntimeException | ScriptException e) {
+				// if an earlier section failed, then that's the error which compiling in order would have found
+				if (executor != null && !(e instanceof UncheckedIOException)) {
+					state.throwFirstDeferredError();
+				}
+				throw e;
+			}
+			if (executor != null) {
+				long parsedAt = metrics == null ? 0 : System.nanoTime();
+				state.finishDeferred();
+				if (metrics != null) {
+					metrics.totalNanos = System.nanoTime() - start;
+					// the sections were compiled while we parsed, so just count the parse pass
+					metrics.parseNanos = parsedAt - start;
+				}
+			} else if (metrics != null) {
+				metrics.totalNanos = System.nanoTime() - start;
+				// whatever wasn't spent on the sections was spent parsing
+				metrics.parseNanos = metrics.totalNanos;
+				for (CompileMetrics.Section section : metrics.sections) {
+					metrics.parseNanos -= section.compileNanos + section.reassembleNanos;
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
 	}
 }
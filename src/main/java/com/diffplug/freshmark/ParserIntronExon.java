@@ -15,6 +15,11 @@
  */
 package com.diffplug.freshmark;
 
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -27,18 +32,24 @@ import javax.script.ScriptException;
  */
 public class ParserIntronExon extends Parser {
 	final String intron, exon;
+	/** The regex for comment blocks, or null if they are found by a literal search for the intron and exon. */
 	final Pattern pattern;
 
 	/**
 	 * A Parser which uses simple intron / exon string to delimit comments.
 	 * <p> 
-	 * Comment blocks will be parsed using the following regex:
+	 * Comment blocks are found by searching for the first intron,
+	 * then the first exon after it, which is equivalent to the following regex:
 	 * <pre>
 	 * Pattern.quote(intron) + "(.*?)" + Pattern.quote(exon)
 	 * </pre>
+	 * but runs in a single pass, without any backtracking.
 	 */
 	public ParserIntronExon(String intron, String exon) {
-		this(intron, exon, Pattern.quote(intron) + "(.*?)" + Pattern.quote(exon));
+		this.intron = intron;
+		this.exon = exon;
+		// an empty delimiter matches everywhere, which the regex already handles correctly
+		this.pattern = intron.isEmpty() || exon.isEmpty() ? Pattern.compile(defaultRegex(intron, exon), Pattern.DOTALL) : null;
 	}
 
 	/**
@@ -53,8 +64,14 @@ public class ParserIntronExon extends Parser {
 		pattern = Pattern.compile(regex, Pattern.DOTALL);
 	}
 
+	private static String defaultRegex(String intron, String exon) {
+		return Pattern.quote(intron) + "(.*?)" + Pattern.quote(exon);
+	}
+
 	/**
 	 * Given an input string, parses out the body sections from the tag sections.
+	 * <p>
+	 * Chunks are passed as views into {@code rawInput}, so no text is copied.
 	 * 
 	 * @param rawInput 	the raw input string
 	 * @param body		called for every chunk of text outside a tag
@@ -62,17 +79,177 @@ public class ParserIntronExon extends Parser {
 	 */
 	@Override
 	protected void bodyAndTags(String rawInput, ChunkHandler body, ChunkHandler tag) throws ScriptException {
+		if (pattern == null) {
+			bodyAndTagsLiteral(rawInput, body, tag);
+		} else {
+			bodyAndTagsRegex(rawInput, body, tag);
+		}
+	}
+
+	/** With the literal search, a document without the intron can't have any tags (a custom regex might find them anywhere). */
+	@Override
+	protected boolean mayContainTags(String rawInput) {
+		return pattern != null || rawInput.contains(intron);
+	}
+
+	/** Finds each tag with a plain search for the intron, then the exon. */
+	private void bodyAndTagsLiteral(String rawInput, ChunkHandler body, ChunkHandler tag) throws ScriptException {
+		int last = 0;
+		while (true) {
+			int tagStart = rawInput.indexOf(intron, last);
+			if (tagStart < 0) {
+				break;
+			}
+			int contentStart = tagStart + intron.length();
+			int contentEnd = rawInput.indexOf(exon, contentStart);
+			if (contentEnd < 0) {
+				break;
+			}
+			if (tagStart > last) {
+				body.handle(last, CharBuffer.wrap(rawInput, last, tagStart));
+			}
+			tag.handle(contentStart, CharBuffer.wrap(rawInput, contentStart, contentEnd));
+			last = contentEnd + exon.length();
+		}
+		if (last < rawInput.length()) {
+			body.handle(last, CharBuffer.wrap(rawInput, last, rawInput.length()));
+		}
+	}
+
+	/** Finds each tag using the custom regex. */
+	private void bodyAndTagsRegex(String rawInput, ChunkHandler body, ChunkHandler tag) throws ScriptException {
 		Matcher matcher = pattern.matcher(rawInput);
 		int last = 0;
 		while (matcher.find()) {
 			if (matcher.start() > last) {
-				body.handle(last, rawInput.substring(last, matcher.start()));
+				body.handle(last, CharBuffer.wrap(rawInput, last, matcher.start()));
 			}
-			tag.handle(matcher.start(1), matcher.group(1));
+			tag.handle(matcher.start(1), CharBuffer.wrap(rawInput, matcher.start(1), matcher.end(1)));
 			last = matcher.end();
 		}
 		if (last < rawInput.length()) {
-			body.handle(last, rawInput.substring(last));
+			body.handle(last, CharBuffer.wrap(rawInput, last, rawInput.length()));
+		}
+	}
+	/**
+	 * Compiles from the given reader to the given writer, writing each body as soon as it has been read.
+	 * <p>
+	 * Only the content of the currently open section (and a small read buffer) is held in memory.
+	 * A custom regex needs the whole input, so it falls back to {@link Parser#compile(Reader, Writer, SectionCompiler)}.
+	 */
+	@Override
+	public void compile(Reader input, Writer output, SectionCompiler compiler) throws ScriptException, IOException {
+		if (pattern != null) {
+			super.compile(input, output, compiler);
+		} else {
+			StreamScanner scanner = new StreamScanner(input);
+			compile(output, compiler, scanner::lineOf, scanner::bodyAndTags);
+		}
+	}
+
+	/** Finds the intron and exon in a stream, without holding more of it in memory than necessary. */
+	private class StreamScanner {
+		private final Reader reader;
+		private final char[] readBuffer = new char[8192];
+		/** Text which has been read, but not yet passed to a handler. */
+		private final StringBuilder pending = new StringBuilder();
+		/** Offset of the start of {@link #pending} within the whole input. */
+		private int pendingStart = 0;
+		/** Line of the start of {@link #pending}. */
+		private int pendingLine = 1;
+		private boolean eof = false;
+		/** The chunk which is being handled. */
+		private int currentStart, currentLine;
+		/** The chunk which errors in the current section are relative to, chosen just like {@link Parser}'s error formatter does. */
+		private int keptStart, keptLine;
+		/** True if the most recently handled chunk was a body. */
+		private boolean lastWasBody;
+
+		StreamScanner(Reader reader) {
+			this.reader = reader;
+		}
+
+		/** Error reporting only asks about the current chunk, or the chunk which was kept for the current section. */
+		int lineOf(int offset) {
+			if (offset == currentStart) {
+				return currentLine;
+			} else if (offset == keptStart) {
+				return keptLine;
+			} else {
+				throw new IllegalArgumentException("No chunk starts at " + offset);
+			}
+		}
+
+		void bodyAndTags(ChunkHandler body, ChunkHandler tag) throws ScriptException {
+			while (true) {
+				// look for the intron, passing on anything which can't be part of it
+				int tagStart;
+				int searchFrom = 0;
+				while ((tagStart = pending.indexOf(intron, searchFrom)) < 0) {
+					if (eof) {
+						emit(body, false, pending.length());
+						return;
+					}
+					emit(body, false, Math.max(0, pending.length() - (intron.length() - 1)));
+					fill();
+				}
+				emit(body, false, tagStart);
+				// look for the exon, holding onto the intron in case we never find it
+				int tagEnd;
+				searchFrom = intron.length();
+				while ((tagEnd = pending.indexOf(exon, searchFrom)) < 0) {
+					if (eof) {
+						// an intron without an exon is just body
+						emit(body, false, pending.length());
+						return;
+					}
+					searchFrom = Math.max(intron.length(), pending.length() - (exon.length() - 1));
+					fill();
+				}
+				consume(intron.length());
+				emit(tag, true, tagEnd - intron.length());
+				consume(exon.length());
+			}
+		}
+
+		/** Passes the first {@code length} characters of pending to the given handler (if there are any). */
+		private void emit(ChunkHandler handler, boolean isTag, int length) throws ScriptException {
+			if (length > 0) {
+				currentStart = pendingStart;
+				currentLine = pendingLine;
+				handler.handle(pendingStart, pending.substring(0, length));
+				if (isTag || !lastWasBody) {
+					keptStart = currentStart;
+					keptLine = currentLine;
+				}
+				lastWasBody = !isTag;
+				consume(length);
+			}
+		}
+
+		/** Drops the first {@code length} characters of pending. */
+		private void consume(int length) {
+			for (int i = 0; i < length; ++i) {
+				if (pending.charAt(i) == '\n') {
+					++pendingLine;
+				}
+			}
+			pending.delete(0, length);
+			pendingStart += length;
+		}
+
+		/** Reads more of the input into pending. */
+		private void fill() {
+			try {
+				int numRead = reader.read(readBuffer);
+				if (numRead == -1) {
+					eof = true;
+				} else {
+					pending.append(readBuffer, 0, numRead);
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
 		}
 	}
 
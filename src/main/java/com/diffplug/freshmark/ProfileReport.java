@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** The {@link CompileMetrics} for a run of the console, as a table or as JSON. */
+class ProfileReport {
+	private final List<File> files = new ArrayList<>();
+	private final List<CompileMetrics.Document> documents = new ArrayList<>();
+
+	/** Adds the metrics for the given file. */
+	void add(File file, CompileMetrics.Document document) {
+		files.add(file);
+		documents.add(document);
+	}
+
+	/** Prints a table for each file, with a row for each section. */
+	void printTable(PrintStream out) {
+		for (int i = 0; i < files.size(); ++i) {
+			CompileMetrics.Document document = documents.get(i);
+			out.println(String.format(Locale.ROOT, "%s: %s ms total, %s ms parsing, %d -> %d chars",
+					files.get(i), ms(document.totalNanos()), ms(document.parseNanos()), document.charsIn(), document.charsOut()));
+			if (document.sections().isEmpty()) {
+				continue;
+			}
+			out.println(String.format(Locale.ROOT, "  %3s  %-20s %9s %9s %9s %9s %10s %9s %9s  %s",
+					"#", "section", "parse", "engine", "template", "eval", "reassemble", "chars in", "chars out", "notes"));
+			for (CompileMetrics.Section section : document.sections()) {
+				String notes = section.memoized() ? "memoized" : section.interpreted() ? "no engine" : section.scriptCached() ? "script cached" : "-";
+				out.println(String.format(Locale.ROOT, "  %3d  %-20s %9s %9s %9s %9s %10s %9d %9d  %s",
+						section.index(), section.name(), ms(section.parseNanos()), ms(section.engineSetupNanos()), ms(section.templateNanos()),
+						ms(section.evalNanos()), ms(section.reassembleNanos()), section.charsIn(), section.charsOut(), notes));
+			}
+		}
+	}
+
+	/** Nanoseconds to milliseconds. */
+	private static String ms(long nanos) {
+		return String.format(Locale.ROOT, "%.2f", nanos / 1e6);
+	}
+
+	/** The report as JSON, with every time in nanoseconds. */
+	String toJson() {
+		StringBuilder json = new StringBuilder();
+		json.append("{\"files\":[");
+		for (int i = 0; i < files.size(); ++i) {
+			CompileMetrics.Document document = documents.get(i);
+			if (i > 0) {
+				json.append(',');
+			}
+			json.append("\n{\"file\":");
+			string(json, files.get(i).getPath());
+			json.append(",\"totalNanos\":").append(document.totalNanos());
+			json.append(",\"parseNanos\":").append(document.parseNanos());
+			json.append(",\"charsIn\":").append(document.charsIn());
+			json.append(",\"charsOut\":").append(document.charsOut());
+			json.append(",\"sections\":[");
+			for (CompileMetrics.Section section : document.sections()) {
+				if (section.index() > 0) {
+					json.append(',');
+				}
+				json.append("\n {\"name\":");
+				string(json, section.name());
+				json.append(",\"index\":").append(section.index());
+				json.append(",\"parseNanos\":").append(section.parseNanos());
+				json.append(",\"compileNanos\":").append(section.compileNanos());
+				json.append(",\"engineSetupNanos\":").append(section.engineSetupNanos());
+				json.append(",\"templateNanos\":").append(section.templateNanos());
+				json.append(",\"evalNanos\":").append(section.evalNanos());
+				json.append(",\"reassembleNanos\":").append(section.reassembleNanos());
+				json.append(",\"charsIn\":").append(section.charsIn());
+				json.append(",\"charsOut\":").append(section.charsOut());
+				json.append(",\"memoized\":").append(section.memoized());
+				json.append(",\"scriptCached\":").append(section.scriptCached());
+				json.append(",\"interpreted\":").append(section.interpreted());
+				json.append('}');
+			}
+			json.append("]}");
+		}
+		json.append("\n]}\n");
+		return json.toString();
+	}
+
+	/** Appends the given string as a JSON string literal. */
+	private static void string(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':
+				json.append("\\\"");
+				break;
+			case '\\':
+				json.append("\\\\");
+				break;
+			case '\n':
+				json.append("\\n");
+				break;
+			case '\r':
+				json.append("\\r");
+				break;
+			case '\t':
+				json.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Finds the properties which a section's script reads, without running it.
+ * <p>
+ * A script reads a property if the property is a mustache {@code {{key}}} in
+ * the script, or if its name appears as a word anywhere in the script (even
+ * within a string or a comment).  That may find properties which aren't really
+ * read, but it never misses a property which is read by name.  It can't see a
+ * property whose name is computed when the script runs, e.g. {@code eval('ver' + 'sion')}.
+ */
+final class PropertyReferences {
+	private PropertyReferences() {}
+
+	/** Returns the given properties which the given script reads. */
+	static Set<String> of(String script, Collection<String> properties) {
+		Set<String> read = new LinkedHashSet<>();
+		if (properties.isEmpty()) {
+			return read;
+		}
+		for (String key : MustacheTemplate.compile(script).keys()) {
+			if (properties.contains(key)) {
+				read.add(key);
+			}
+		}
+		int i = 0;
+		while (i < script.length()) {
+			if (Character.isJavaIdentifierStart(script.charAt(i))) {
+				int start = i;
+				do {
+					++i;
+				} while (i < script.length() && Character.isJavaIdentifierPart(script.charAt(i)));
+				String word = script.substring(start, i);
+				if (properties.contains(word)) {
+					read.add(word);
+				}
+			} else {
+				++i;
+			}
+		}
+		return read;
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.Map;
+
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+/**
+ * A bounded, least-recently-used cache of {@link CompiledScript}s, keyed by their program text.
+ * <p>
+ * A CompiledScript can only be run by the engine which compiled it, and it holds
+ * onto that engine, so every engine gets its own map of scripts from {@link #newEngineCache()},
+ * which must be kept with the engine so that they're garbage collected together.
+ * The hit and miss counts are shared by every engine, and are thread-safe.
+ */
+public class ScriptCache {
+	/** The number of scripts which are cached per engine by default. */
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	private final int maxSize;
+	private long hits, misses;
+
+	/** Creates a cache which holds up to {@code maxSize} scripts per engine. */
+	public ScriptCache(int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be at least 1, was " + maxSize);
+		}
+		this.maxSize = maxSize;
+	}
+
+	/** Returns an empty map for the scripts of a single engine, which must only be used by one thread at a time. */
+	public Map<String, CompiledScript> newEngineCache() {
+		return new LruCache<>(maxSize);
+	}
+
+	/**
+	 * Returns the compiled form of the given program, compiling it and adding it to the engine's
+	 * scripts if necessary.  Returns null if the engine doesn't support compilation.
+	 */
+	CompiledScript get(ScriptEngine engine, Map<String, CompiledScript> scriptsOfEngine, String program) throws ScriptException {
+		if (!(engine instanceof Compilable)) {
+			return null;
+		}
+		CompiledScript cached = scriptsOfEngine.get(program);
+		if (cached != null) {
+			synchronized (this) {
+				++hits;
+			}
+			CompileMetrics.Section metrics = CompileMetrics.current();
+			if (metrics != null) {
+				metrics.scriptCached = true;
+			}
+			return cached;
+		}
+		synchronized (this) {
+			++misses;
+		}
+		CompiledScript compiled = ((Compilable) engine).compile(program);
+		scriptsOfEngine.put(program, compiled);
+		return compiled;
+	}
+
+	/** The number of lookups which found an already-compiled script. */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/** The number of lookups which had to compile the script. */
+	public synchronized long misses() {
+		return misses;
+	}
+}
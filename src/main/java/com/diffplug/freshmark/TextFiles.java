@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+
+/**
+ * Reads and writes text files for {@link FreshMarkConsole} with as few copies as possible.
+ * <p>
+ * Each file is read into a direct buffer which is reused by the current thread, and is
+ * decoded straight into a char array, converting windows newlines to unix in the same pass.
+ * Writing encodes the text straight into a byte buffer, converting unix newlines to the
+ * requested line ending as it goes.  Malformed input is replaced, just like {@link String#String(byte[], Charset)}.
+ * <p>
+ * The files are read into a direct buffer rather than mapped, because a mapped file can't
+ * be replaced on Windows until the mapping has been garbage collected.
+ */
+class TextFiles {
+	/** Direct buffers which are reused by each thread, grown to fit the biggest file so far. */
+	private static final ThreadLocal<ByteBuffer> READ_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(64 * 1024));
+
+	/** Reads the raw bytes of the given file, which are only valid until this thread reads another file. */
+	static ByteBuffer readBytes(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file + " is too big (" + size + " bytes)");
+			}
+			ByteBuffer buffer = READ_BUFFER.get();
+			if (buffer.capacity() < size) {
+				buffer = ByteBuffer.allocateDirect((int) size);
+				READ_BUFFER.set(buffer);
+			}
+			buffer.clear();
+			buffer.limit((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {}
+			buffer.flip();
+			return buffer.asReadOnlyBuffer();
+		}
+	}
+
+	/** Returns true if the remaining content of the given buffer contains the given bytes (without changing its position). */
+	static boolean contains(ByteBuffer buffer, byte[] needle) {
+		if (needle.length == 0) {
+			return true;
+		}
+		byte first = needle[0];
+		int last = buffer.limit() - needle.length;
+		outer: for (int i = buffer.position(); i <= last; ++i) {
+			if (buffer.get(i) != first) {
+				continue;
+			}
+			for (int j = 1; j < needle.length; ++j) {
+				if (buffer.get(i + j) != needle[j]) {
+					continue outer;
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+
+	/** Decodes the given bytes, converting windows newlines to unix. */
+	static String decode(ByteBuffer bytes, Charset charset) throws CharacterCodingException {
+		CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		// decoding can never produce more than maxCharsPerByte per byte, so this never overflows
+		CharBuffer chars = CharBuffer.allocate((int) Math.ceil(bytes.remaining() * (double) decoder.maxCharsPerByte()) + 1);
+		CoderResult result = decoder.decode(bytes, chars, true);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		result = decoder.flush(chars);
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		// squeeze out the \r of every \r\n
+		char[] array = chars.array();
+		int length = chars.position();
+		int write = 0;
+		for (int read = 0; read < length; ++read) {
+			char c = array[read];
+			if (c == '\r' && read + 1 < length && array[read + 1] == '\n') {
+				continue;
+			}
+			array[write++] = c;
+		}
+		return new String(array, 0, write);
+	}
+
+	/** Encodes the given text (which has unix newlines), converting each newline to the given line ending. */
+	static ByteBuffer encode(String text, String lineEnding, Charset charset) throws CharacterCodingException {
+		CharsetEncoder encoder = charset.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		ByteBuffer out = ByteBuffer.allocate((int) (text.length() * encoder.averageBytesPerChar()) + 16);
+		if (lineEnding.equals("\n")) {
+			out = encode(encoder, CharBuffer.wrap(text), out);
+		} else {
+			CharBuffer ending = CharBuffer.wrap(lineEnding);
+			int start = 0;
+			int newline;
+			while ((newline = text.indexOf('\n', start)) >= 0) {
+				out = encode(encoder, CharBuffer.wrap(text, start, newline), out);
+				out = encode(encoder, ending.duplicate(), out);
+				start = newline + 1;
+			}
+			out = encode(encoder, CharBuffer.wrap(text, start, text.length()), out);
+		}
+		// tell the encoder we're done
+		CharBuffer empty = CharBuffer.allocate(0);
+		CoderResult result;
+		while ((result = encoder.encode(empty, out, true)).isOverflow()) {
+			out = grow(out);
+		}
+		while ((result = encoder.flush(out)).isOverflow()) {
+			out = grow(out);
+		}
+		if (!result.isUnderflow()) {
+			result.throwException();
+		}
+		out.flip();
+		return out;
+	}
+
+	/** Encodes all of the given chars into out, growing it as necessary. */
+	private static ByteBuffer encode(CharsetEncoder encoder, CharBuffer in, ByteBuffer out) throws CharacterCodingException {
+		while (true) {
+			CoderResult result = encoder.encode(in, out, false);
+			if (result.isOverflow()) {
+				out = grow(out);
+			} else if (result.isUnderflow()) {
+				return out;
+			} else {
+				result.throwException();
+			}
+		}
+	}
+
+	private static ByteBuffer grow(ByteBuffer buffer) {
+		ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2 + 16);
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	/**
+	 * Writes to a temporary file, then moves it over the target, so that the target is never half-written.
+	 * If the target is a symlink, the file it links to is replaced, and the link is left alone.
+	 */
+	static void writeAtomically(Path target, ByteBuffer content) throws IOException {
+		if (Files.exists(target)) {
+			target = target.toRealPath();
+		}
+		Path dir = target.toAbsolutePath().getParent();
+		Path temp = Files.createTempFile(dir, "." + target.getFileName(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				ByteBuffer toWrite = content.duplicate();
+				while (toWrite.hasRemaining()) {
+					channel.write(toWrite);
+				}
+			}
+			// the temp file is created owner-only, so match the original permissions
+			if (Files.exists(target) && Files.getFileStore(target).supportsFileAttributeView(PosixFileAttributeView.class)) {
+				Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+}
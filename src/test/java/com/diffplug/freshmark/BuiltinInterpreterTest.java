@@ -0,0 +1,92 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BuiltinInterpreterTest {
+	private static final Map<String, Object> PROPS = new HashMap<>();
+
+	static {
+		PROPS.put("stable", "1.0");
+		PROPS.put("org", "diffplug");
+		PROPS.put("count", 3);
+	}
+
+	@Test
+	public void testSupported() throws ScriptException {
+		assertSameAsEngine("output = input");
+		assertSameAsEngine("output = input;");
+		assertSameAsEngine("\n output = 'a' + \"b\" + input + stable;\n");
+		assertSameAsEngine("output = link('text', 'url')");
+		assertSameAsEngine("output = image('alt', 'url')");
+		assertSameAsEngine("output = shield('Maven artifact', 'mavenCentral', 'com.diffplug:freshmark', 'blue')");
+		assertSameAsEngine("output = prefixDelimiterReplace(input, 'https://', '/', stable)");
+		assertSameAsEngine("output = [\n\tlink('a', 'b'),\n\t'',\n\t(org + '!'),\n\t].join('\\n')");
+		assertSameAsEngine("output = ['a', 'b'].join()");
+		assertSameAsEngine("output = [].join('x')");
+		assertSameAsEngine("output = 'esc\\'apes \\\\ \\t \\x41 \\u00e9 \\/ \\\ncontinued'");
+	}
+
+	@Test
+	public void testUnsupported() throws ScriptException {
+		// numbers, non-string properties, and methods
+		assertNeedsEngine("output = 'a' + 1");
+		assertNeedsEngine("output = count");
+		assertNeedsEngine("output = input.toUpperCase()");
+		// several statements, comments, and other assignments
+		assertNeedsEngine("var x = 'a'; output = x");
+		assertNeedsEngine("output = 'a'; // comment");
+		assertNeedsEngine("output = 'a'; output += 'b'");
+		assertNeedsEngine("output = 'a' == 'b'");
+		// automatic semicolon insertion makes this two statements
+		assertNeedsEngine("output = 'a'\n'b'");
+		// octal escapes
+		assertNeedsEngine("output = '\\1'");
+		// errors are left to the engine, so that it can report them
+		Assert.assertNull(new BuiltinInterpreter(PROPS).eval("output = link('a')", "input"));
+		Assert.assertNull(new BuiltinInterpreter(PROPS).eval("output = unknown('a')", "input"));
+		Assert.assertNull(new BuiltinInterpreter(PROPS).eval("output = missing", "input"));
+		Assert.assertNull(new BuiltinInterpreter(PROPS).eval("output = 'unterminated", "input"));
+	}
+
+	private void assertSameAsEngine(String program) throws ScriptException {
+		String interpreted = new BuiltinInterpreter(PROPS).eval(program, "in/put");
+		Assert.assertNotNull("Should have been interpreted: " + program, interpreted);
+		Assert.assertEquals(program, evalOnEngine(program, "in/put"), interpreted);
+	}
+
+	private void assertNeedsEngine(String program) throws ScriptException {
+		Assert.assertNull(program, new BuiltinInterpreter(PROPS).eval(program, "input"));
+		// make sure the test case is a valid program
+		evalOnEngine(program, "input");
+	}
+
+	private static String evalOnEngine(String program, String input) throws ScriptException {
+		FreshMark freshmark = new FreshMark(PROPS, warning -> {});
+		ScriptEngine engine = freshmark.setupScriptEngine("section");
+		engine.put("input", input);
+		engine.eval(program);
+		return String.valueOf(engine.get("output"));
+	}
+}
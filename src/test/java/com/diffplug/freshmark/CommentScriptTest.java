@@ -15,6 +15,7 @@
  */
 package com.diffplug.freshmark;
 
+import java.util.Arrays;
 import java.util.Locale;
 
 import org.junit.Assert;
@@ -28,4 +29,14 @@ public class CommentScriptTest {
 		String afterActual = CommentScript.mustacheTemplate(before, key -> key.toUpperCase(Locale.US));
 		Assert.assertEquals(after, afterActual);
 	}
+
+	@Test
+	public void testMustacheTemplateCompiled() {
+		MustacheTemplate template = MustacheTemplate.compile("a{{b}}c{{{d}}e{{f");
+		Assert.assertEquals(Arrays.asList("b", "{d"), template.keys());
+		Assert.assertEquals("aBc{De{{f", template.render(key -> key.toUpperCase(Locale.US)));
+		// no keys at all
+		Assert.assertEquals("abc", MustacheTemplate.compile("abc").render(key -> "unused"));
+		Assert.assertEquals("", MustacheTemplate.compile("").render(key -> "unused"));
+	}
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompileMetricsTest {
+	@Test
+	public void testMetrics() throws Exception {
+		FreshMark freshmark = new FreshMark(Collections.emptyMap(), warning -> {});
+		MemoizingSectionCompiler memoized = new MemoizingSectionCompiler(freshmark, 16);
+		String section = "<!---freshmark upper\noutput = input.toUpperCase()\n-->\nabc\n<!---freshmark /upper -->\n";
+		String other = "<!---freshmark upper\noutput = input.toUpperCase()\n-->\nxy\n<!---freshmark /upper -->\n";
+		String doc = "intro\n" + section + section + other;
+
+		List<CompileMetrics.Document> documents = new ArrayList<>();
+		String result = freshmark.compile(doc, memoized, documents::add);
+		Assert.assertEquals(freshmark.compile(doc), result);
+		Assert.assertEquals(1, documents.size());
+
+		CompileMetrics.Document document = documents.get(0);
+		Assert.assertEquals(doc.length(), document.charsIn());
+		Assert.assertEquals(result.length(), document.charsOut());
+		Assert.assertTrue(document.parseNanos() >= 0);
+		Assert.assertEquals(3, document.sections().size());
+
+		CompileMetrics.Section first = document.sections().get(0);
+		Assert.assertEquals("upper", first.name());
+		Assert.assertEquals(0, first.index());
+		Assert.assertEquals("\nabc\n".length(), first.charsIn());
+		Assert.assertEquals("\nABC\n".length(), first.charsOut());
+		Assert.assertFalse(first.memoized());
+		Assert.assertTrue(first.evalNanos() > 0);
+		Assert.assertTrue(first.compileNanos() >= first.engineSetupNanos() + first.templateNanos() + first.evalNanos());
+		// the second is an exact repeat, so its script doesn't run
+		CompileMetrics.Section second = document.sections().get(1);
+		Assert.assertTrue(second.memoized());
+		Assert.assertEquals(0, second.evalNanos());
+		// the third has a new input, but the same script
+		CompileMetrics.Section third = document.sections().get(2);
+		Assert.assertFalse(third.memoized());
+		Assert.assertTrue(third.scriptCached());
+		// nothing is left behind for the thread
+		Assert.assertNull(CompileMetrics.current());
+	}
+}
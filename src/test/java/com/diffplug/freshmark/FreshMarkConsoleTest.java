@@ -15,19 +15,25 @@
  */
 package com.diffplug.freshmark;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import com.diffplug.common.base.Box;
 import com.diffplug.common.base.Errors;
 import com.diffplug.common.base.StringPrinter;
+import com.diffplug.common.base.Throwing;
 import com.diffplug.freshmark.FreshMarkConsole.LineEnding;
 
 public class FreshMarkConsoleTest {
@@ -42,7 +48,8 @@ public class FreshMarkConsoleTest {
 	}
 
 	/** Standard test case. */
-	private void testCase(File toRead, String filenameAfter, String args, String consoleOutput) throws IOException {
+	private FreshMarkConsole testCase(File toRead, String filenameAfter, String args, String consoleOutput) throws IOException {
+		Box.Nullable<FreshMarkConsole> console = Box.Nullable.ofNull();
 		String consoleOutputActual = StringPrinter.buildString(printer -> {
 			PrintStream out = System.out;
 			PrintStream err = System.err;
@@ -51,7 +58,7 @@ public class FreshMarkConsoleTest {
 				System.setOut(printer.toPrintStream());
 				System.setErr(printer.toPrintStream());
 				// now run the test, capturing the output as we go
-				FreshMarkConsole.main(args.split(" "));
+				console.set(new FreshMarkConsole(args.split(" ")));
 				// check the result
 				String result = new String(Files.readAllBytes(toRead.toPath()), StandardCharsets.UTF_8)
 						.replace(LineEnding.WINDOWS.string, LineEnding.UNIX.string);
@@ -65,25 +72,71 @@ public class FreshMarkConsoleTest {
 		});
 		consoleOutputActual = consoleOutputActual.replace(LineEnding.WINDOWS.string, LineEnding.UNIX.string);
 		Assert.assertEquals(consoleOutput, consoleOutputActual);
+		return console.get();
+	}
+
+	/** The usage message, for the given default value of {@code -P}. */
+	private static String usage(String propertiesDefault) {
+		return "\n" +
+				"usage: freshmark [-P] [-cache FILE] [-check] [-dir DIR] [-endings [PLATFORM_NATIVE | WINDOWS | UNIX]] [-exclude GLOB] [-file FILE] [-include GLOB] [-memoize] [-parallelSections] [-profile] [-profileJson FILE] [-properties FILE] [-threads N] [-watch]\n" +
+				" -P                                     : sets the properties which are\n" +
+				"                                          available in the script, -P\n" +
+				"                                          KEY_1=VALUE_1 -P KEY_2=VALUE_2\n" +
+				"                                          (default: " + propertiesDefault + ")\n" +
+				" -cache FILE                            : skips files which haven't changed\n" +
+				"                                          since they were last compiled with\n" +
+				"                                          the same properties, as recorded in\n" +
+				"                                          the given file\n" +
+				" -check                                 : reports the files which are not fresh\n" +
+				"                                          and fails if there are any, without\n" +
+				"                                          writing anything (default: false)\n" +
+				" -dir DIR                               : applies freshmark to every file in\n" +
+				"                                          the given directory which contains a\n" +
+				"                                          freshmark tag, skipping .git and\n" +
+				"                                          build directories (multiple are\n" +
+				"                                          allowed)\n" +
+				" -endings [PLATFORM_NATIVE | WINDOWS |  : determines the line endings to use in\n" +
+				" UNIX]                                    the output (default: PLATFORM_NATIVE)\n" +
+				" -exclude GLOB                          : the files in -dir whose path\n" +
+				"                                          (relative to the dir) matches one of\n" +
+				"                                          these globs are skipped (multiple are\n" +
+				"                                          allowed)\n" +
+				" -file FILE                             : applies freshmark to the given file\n" +
+				"                                          (multiple are allowed)\n" +
+				" -include GLOB                          : only the files in -dir whose path\n" +
+				"                                          (relative to the dir) matches one of\n" +
+				"                                          these globs are compiled, default\n" +
+				"                                          **.md (multiple are allowed)\n" +
+				" -memoize                               : compiles sections which are identical\n" +
+				"                                          across files only once, which is only\n" +
+				"                                          safe if no section depends on global\n" +
+				"                                          variables set by another, and only\n" +
+				"                                          prints their warnings once (default:\n" +
+				"                                          false)\n" +
+				" -parallelSections                      : compiles the sections within each\n" +
+				"                                          file concurrently, which is only safe\n" +
+				"                                          if no section depends on global\n" +
+				"                                          variables set by another (default:\n" +
+				"                                          false)\n" +
+				" -profile                               : prints how long each section of each\n" +
+				"                                          file took to compile (default: false)\n" +
+				" -profileJson FILE                      : writes how long each section of each\n" +
+				"                                          file took to compile to the given\n" +
+				"                                          file, as JSON\n" +
+				" -properties FILE                       : loads properties from the given file\n" +
+				" -threads N                             : the number of files to compile\n" +
+				"                                          concurrently (default: the number of\n" +
+				"                                          processors)\n" +
+				" -watch                                 : after compiling, keeps recompiling\n" +
+				"                                          whichever files (or properties file)\n" +
+				"                                          change, until stopped (default: false)\n";
 	}
 
 	@Test
 	public void testNoFile() throws IOException {
 		File testFile = createTestFile("test.md", TestResource.getTestResource("full_before.txt"));
 		testCase(testFile, "full_before.txt", "-P prop=key",
-				"Option \"-file\" is required\n" +
-						"\n" +
-						"usage: freshmark [-P] [-endings [PLATFORM_NATIVE | WINDOWS | UNIX]] -file FILE [-properties FILE]\n" +
-						" -P                                     : sets the properties which are\n" +
-						"                                          available in the script, -P\n" +
-						"                                          KEY_1=VALUE_1 -P KEY_2=VALUE_2\n" +
-						"                                          (default: {prop=key})\n" +
-						" -endings [PLATFORM_NATIVE | WINDOWS |  : determines the line endings to use in\n" +
-						" UNIX]                                    the output (default: PLATFORM_NATIVE)\n" +
-						" -file FILE                             : applies freshmark to the given file\n" +
-						"                                          (multiple are allowed)\n" +
-						" -properties FILE                       : loads properties from the given file\n" +
-						"");
+				"No files were specified, use -file or -dir.\n" + usage("{prop=key}"));
 	}
 
 	@Test
@@ -104,18 +157,7 @@ public class FreshMarkConsoleTest {
 						"Unknown key 'org'\n" +
 						"Unknown key 'name'\n" +
 						"ReferenceError: \"stable\" is not defined in <eval> at line number 24\n" +
-						"\n" +
-						"usage: freshmark [-P] [-endings [PLATFORM_NATIVE | WINDOWS | UNIX]] -file FILE [-properties FILE]\n" +
-						" -P                                     : sets the properties which are\n" +
-						"                                          available in the script, -P\n" +
-						"                                          KEY_1=VALUE_1 -P KEY_2=VALUE_2\n" +
-						"                                          (default: {})\n" +
-						" -endings [PLATFORM_NATIVE | WINDOWS |  : determines the line endings to use in\n" +
-						" UNIX]                                    the output (default: PLATFORM_NATIVE)\n" +
-						" -file FILE                             : applies freshmark to the given file\n" +
-						"                                          (multiple are allowed)\n" +
-						" -properties FILE                       : loads properties from the given file\n" +
-						"");
+						usage("{}"));
 	}
 
 	@Test
@@ -132,4 +174,238 @@ public class FreshMarkConsoleTest {
 		File propFile = createTestFile("props.properties", TestResource.getTestResource("full_props.properties"));
 		testCase(testFile, "full_after.txt", "-properties " + propFile + " -file " + testFile.getAbsolutePath(), "");
 	}
+
+	@Test
+	public void testManyFilesInParallel() throws IOException {
+		String before = TestResource.getTestResource("full_before.txt");
+		String after = TestResource.getTestResource("full_after.txt");
+		File propFile = createTestFile("props.properties", TestResource.getTestResource("full_props.properties"));
+		List<File> files = new ArrayList<>();
+		StringBuilder args = new StringBuilder("-threads 4 -properties " + propFile);
+		for (int i = 0; i < 16; ++i) {
+			File file = createTestFile("test" + i + ".md", before);
+			files.add(file);
+			args.append(" -file " + file.getAbsolutePath());
+		}
+		testCase(files.get(0), "full_after.txt", args.toString(), "");
+		for (File file : files) {
+			String result = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)
+					.replace(LineEnding.WINDOWS.string, LineEnding.UNIX.string);
+			Assert.assertEquals(after, result);
+		}
+	}
+
+	@Test
+	public void testErrorsAreReportedPerFile() throws IOException {
+		File good = createTestFile("good.md", TestResource.getTestResource("nocomment.txt"));
+		File bad = createTestFile("bad.md", TestResource.getTestResource("mismatched.txt"));
+		testCase(good, "nocomment.txt", "-file " + bad.getAbsolutePath() + " -file " + good.getAbsolutePath(),
+				bad.getAbsolutePath() + ": Error on line 7: Expecting '/simple'\n" + usage("{}"));
+	}
+
+	@Test
+	public void testUnchangedFilesAreNotWritten() throws IOException {
+		File fresh = createTestFile("fresh.md", TestResource.getTestResource("nocomment.txt"));
+		Assert.assertTrue(fresh.setLastModified(0));
+		FreshMarkConsole console = testCase(fresh, "nocomment.txt", "-endings UNIX -file " + fresh.getAbsolutePath(), "");
+		Assert.assertEquals(0, fresh.lastModified());
+		Assert.assertEquals(1, console.unchangedCount());
+		Assert.assertTrue(console.changedFiles().isEmpty());
+		Assert.assertEquals(0, console.exitCode());
+	}
+
+	@Test
+	public void testFilesWithoutSectionsAreLeftAlone() throws IOException {
+		File plain = createTestFile("plain.md", "no tags\r\nhere\r\n");
+		FreshMarkConsole console = new FreshMarkConsole(("-check -endings UNIX -file " + plain.getAbsolutePath()).split(" "));
+		Assert.assertEquals(1, console.unchangedCount());
+		Assert.assertEquals(0, console.exitCode());
+	}
+
+	@Test
+	public void testWarningsOfRepeatedSections() throws IOException {
+		String doc = "<!---freshmark s\noutput = '{{missing}}';\n-->\n<!---freshmark /s -->\n";
+		File a = createTestFile("a.md", doc);
+		File b = createTestFile("b.md", doc);
+		String files = " -file " + a.getAbsolutePath() + " -file " + b.getAbsolutePath();
+		String output = StringPrinter.buildString(printer -> {
+			new FreshMarkConsole(("-endings UNIX" + files).split(" "), printer.toPrintStream(), null, FreshMarkConsole.Compiler::new);
+		});
+		Assert.assertEquals(a + ": Unknown key 'missing'\n" + b + ": Unknown key 'missing'\n", output.replace("\r\n", "\n"));
+		// with -memoize, the repeated section is only compiled once
+		Files.write(a.toPath(), doc.getBytes(StandardCharsets.UTF_8));
+		Files.write(b.toPath(), doc.getBytes(StandardCharsets.UTF_8));
+		output = StringPrinter.buildString(printer -> {
+			new FreshMarkConsole(("-memoize -threads 1 -endings UNIX" + files).split(" "), printer.toPrintStream(), null, FreshMarkConsole.Compiler::new);
+		});
+		Assert.assertEquals(a + ": Unknown key 'missing'\n", output.replace("\r\n", "\n"));
+		Assert.assertEquals(read(a), read(b));
+	}
+
+	@Test
+	public void testCheck() throws IOException {
+		File stale = createTestFile("stale.md", TestResource.getTestResource("simple.txt"));
+		File fresh = createTestFile("fresh.md", TestResource.getTestResource("nocomment.txt"));
+		FreshMarkConsole console = testCase(stale, "simple.txt", "-check -endings UNIX -file " + stale.getAbsolutePath() + " -file " + fresh.getAbsolutePath(),
+				stale.getAbsolutePath() + " is not fresh\n" +
+						"1 file(s) would change, 1 unchanged\n");
+		Assert.assertEquals(Arrays.asList(stale), console.changedFiles());
+		Assert.assertEquals(1, console.exitCode());
+	}
+
+	@Test
+	public void testCache() throws IOException {
+		// a script which changes the file every time it runs, so we can tell whether it ran
+		String growing = "<!---freshmark grow\noutput = input + 'x\\n'\n-->\n<!---freshmark /grow -->\n";
+		File file = createTestFile("grow.md", growing);
+		File cache = new File(folder.getRoot(), ".freshmark-cache");
+		String args = "-endings UNIX -cache " + cache.getAbsolutePath() + " -file " + file.getAbsolutePath();
+		FreshMarkConsole console = new FreshMarkConsole(args.split(" "));
+		Assert.assertEquals(1, console.changedFiles().size());
+		String once = read(file);
+		Assert.assertTrue(once.contains("\nx\n"));
+		// the second run finds the file in the cache, so the script doesn't run
+		console = new FreshMarkConsole(args.split(" "));
+		Assert.assertEquals(1, console.unchangedCount());
+		Assert.assertEquals(once, read(file));
+		// but new properties mean it runs again
+		console = new FreshMarkConsole(("-P key=value " + args).split(" "));
+		Assert.assertEquals(1, console.changedFiles().size());
+		Assert.assertTrue(read(file).contains("\nx\nx\n"));
+	}
+
+	@Test
+	public void testCacheDoesntHideWarnings() throws IOException {
+		File file = createTestFile("warns.md", "<!---freshmark s\noutput = '{{missing}}';\n-->\n<!---freshmark /s -->\n");
+		File cache = new File(folder.getRoot(), ".freshmark-cache");
+		String args = "-endings UNIX -cache " + cache.getAbsolutePath() + " -file " + file.getAbsolutePath();
+		// the file is only changed by the first run, but every run warns about it
+		for (int i = 0; i < 2; ++i) {
+			String output = StringPrinter.buildString(printer -> {
+				new FreshMarkConsole(args.split(" "), printer.toPrintStream(), null, FreshMarkConsole.Compiler::new);
+			});
+			Assert.assertEquals("Unknown key 'missing'\n", output.replace("\r\n", "\n"));
+		}
+	}
+
+	@Test
+	public void testDir() throws IOException {
+		// a script which changes the file every time it runs, so we can tell whether it ran
+		String growing = "<!---freshmark grow\noutput = input + 'x\\n'\n-->\n<!---freshmark /grow -->\n";
+		File top = createFile("top.md", growing);
+		File nested = createFile("docs/nested.md", growing);
+		File excluded = createFile("docs/excluded.md", growing);
+		File notMarkdown = createFile("notes.txt", growing);
+		File inGit = createFile(".git/git.md", growing);
+		File inBuild = createFile("docs/build/built.md", growing);
+		File plain = createFile("plain.md", "no tags here\r\n");
+		Assert.assertTrue(plain.setLastModified(0));
+		String args = "-endings UNIX -dir " + folder.getRoot().getAbsolutePath() + " -exclude **/excluded.md";
+		String output = StringPrinter.buildString(printer -> {
+			FreshMarkConsole console = new FreshMarkConsole(args.split(" "), printer.toPrintStream(), null, FreshMarkConsole.Compiler::new);
+			Assert.assertEquals(0, console.exitCode());
+			Assert.assertEquals(Arrays.asList(nested, top), console.changedFiles());
+			Assert.assertEquals(1, console.unchangedCount());
+		});
+		Assert.assertEquals("", output);
+		for (File file : Arrays.asList(top, nested)) {
+			Assert.assertNotEquals(growing, read(file));
+		}
+		for (File file : Arrays.asList(excluded, notMarkdown, inGit, inBuild)) {
+			Assert.assertEquals(growing, read(file));
+		}
+		// a file without any tags isn't touched, even though its line endings don't match
+		Assert.assertEquals("no tags here\r\n", read(plain));
+		Assert.assertEquals(0, plain.lastModified());
+	}
+
+	@Test
+	public void testDirWithIncludeAndFile() throws IOException {
+		String growing = "<!---freshmark grow\noutput = input + 'x\\n'\n-->\n<!---freshmark /grow -->\n";
+		File included = createFile("notes.txt", growing);
+		File explicit = createFile("explicit.md", growing);
+		String args = "-endings UNIX -file " + explicit.getAbsolutePath() + " -dir " + folder.getRoot().getAbsolutePath() + " -include *.txt";
+		FreshMarkConsole console = new FreshMarkConsole(args.split(" "));
+		// each file is compiled only once, and the files which were specified come first
+		Assert.assertEquals(Arrays.asList(explicit, included), console.changedFiles());
+		Assert.assertTrue(read(explicit).contains("\nx\n<!---"));
+		Assert.assertTrue(read(included).contains("\nx\n<!---"));
+	}
+
+	/** Returns a File (in a temporary folder, creating its parent folders) which has the given contents. */
+	private File createFile(String path, String content) throws IOException {
+		File file = new File(folder.getRoot(), path);
+		Files.createDirectories(file.getParentFile().toPath());
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return file;
+	}
+
+	@Test
+	public void testProfile() throws IOException {
+		File file = createTestFile("simple.md", TestResource.getTestResource("simple.txt"));
+		File json = new File(folder.getRoot(), "profile.json");
+		String[] args = ("-profile -profileJson " + json.getAbsolutePath() + " -endings UNIX -file " + file.getAbsolutePath()).split(" ");
+		String output = StringPrinter.buildString(printer -> {
+			FreshMarkConsole console = new FreshMarkConsole(args, printer.toPrintStream(), null, FreshMarkConsole.Compiler::new);
+			Assert.assertEquals(0, console.exitCode());
+		});
+		Assert.assertTrue(output, output.startsWith(file + ": "));
+		Assert.assertTrue(output, output.contains(" simple "));
+		String profile = read(json);
+		Assert.assertTrue(profile, profile.startsWith("{\"files\":[\n{\"file\":\"" + file.getPath().replace("\\", "\\\\") + "\","));
+		Assert.assertTrue(profile, profile.contains("{\"name\":\"simple\",\"index\":0,"));
+	}
+
+	@Test
+	public void testWatch() throws Exception {
+		String doc = "<!---freshmark v\noutput = '\\nv=' + v + '\\n'\n-->\n<!---freshmark /v -->\n" +
+				"<!---freshmark grow\noutput = input + 'x\\n'\n-->\n<!---freshmark /grow -->\n";
+		File file = createTestFile("watch.md", doc);
+		File propFile = createTestFile("watch.properties", "v=1\n");
+		String[] args = ("-watch -endings UNIX -properties " + propFile + " -file " + file.getAbsolutePath()).split(" ");
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PrintStream err = new PrintStream(output, true);
+		Thread thread = new Thread(() -> new FreshMarkConsole(args, err, null, FreshMarkConsole.Compiler::new));
+		thread.start();
+		try {
+			awaitUntil(() -> output.toString().contains("Watching 1 file(s)"));
+			Assert.assertTrue(read(file).contains("\nv=1\n"));
+			// editing the file recompiles it
+			Files.write(file.toPath(), ("edited\n" + doc).getBytes(StandardCharsets.UTF_8));
+			awaitUntil(() -> read(file).startsWith("edited\n") && read(file).contains("\nv=1\n"));
+			// editing the properties recompiles every section which reads a property that changed
+			Files.write(propFile.toPath(), "v=2\n".getBytes(StandardCharsets.UTF_8));
+			awaitUntil(() -> read(file).contains("\nv=2\n"));
+			// but not the other sections, which only grew when the file was compiled and then edited
+			Assert.assertTrue(read(file).contains("-->\nx\nx\n<!---"));
+		} finally {
+			thread.interrupt();
+			thread.join(10_000);
+		}
+		Assert.assertFalse(thread.isAlive());
+	}
+
+	@Test
+	public void testWatchCantCheck() throws IOException {
+		File file = createTestFile("nocomment.md", TestResource.getTestResource("nocomment.txt"));
+		String[] args = ("-watch -check -file " + file.getAbsolutePath()).split(" ");
+		String output = StringPrinter.buildString(printer -> {
+			FreshMarkConsole console = new FreshMarkConsole(args, printer.toPrintStream(), null, FreshMarkConsole.Compiler::new);
+			Assert.assertEquals(1, console.exitCode());
+		});
+		Assert.assertTrue(output, output.startsWith("-watch can't be combined with -check\n"));
+	}
+
+	/** Waits up to 10 seconds for the given condition to become true. */
+	private static void awaitUntil(Throwing.Specific.Supplier<Boolean, IOException> condition) throws IOException, InterruptedException {
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (!condition.get()) {
+			Assert.assertTrue("Timed out", System.currentTimeMillis() < deadline);
+			Thread.sleep(20);
+		}
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+	}
 }
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.diffplug.common.base.StringPrinter;
+
+public class FreshMarkDaemonTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testClientAndDaemon() throws Exception {
+		File file = folder.newFile("test.md");
+		Files.write(file.toPath(), TestResource.getTestResource("full_before.txt").getBytes(StandardCharsets.UTF_8));
+		File propFile = folder.newFile("props.properties");
+		Files.write(propFile.toPath(), TestResource.getTestResource("full_props.properties").getBytes(StandardCharsets.UTF_8));
+
+		File tokenDir = folder.newFolder("tokens");
+		try (FreshMarkDaemon daemon = new FreshMarkDaemon(0, tokenDir)) {
+			Thread thread = new Thread(() -> {
+				try {
+					daemon.run();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+			thread.start();
+			port = daemon.port();
+			// relative paths are resolved against the client's working directory
+			Response response = run(tokenDir, "-endings", "UNIX", "-properties", "props.properties", "-file", "test.md");
+			Assert.assertEquals("", response.output);
+			Assert.assertEquals(0, response.exitCode);
+			Assert.assertEquals(TestResource.getTestResource("full_after.txt"), new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+
+			// errors come back with the console's output and exit code
+			response = run(tokenDir, "-file", "doesnotexist.md");
+			Assert.assertEquals(1, response.exitCode);
+			Assert.assertTrue(response.output, response.output.startsWith(new File(folder.getRoot(), "doesnotexist.md").getPath()));
+
+			// it won't write files outside of the working directory
+			File outside = new File(folder.getRoot().getParentFile(), "outside.json");
+			response = run(tokenDir, "-profileJson", outside.getPath(), "-file", "test.md");
+			Assert.assertEquals(1, response.exitCode);
+			Assert.assertEquals("The daemon only writes -profileJson within the working directory, not " + outside.getPath() + "\n", response.output);
+			Assert.assertFalse(outside.exists());
+			response = run(tokenDir, "-file", "../outside.md");
+			Assert.assertEquals(1, response.exitCode);
+			Assert.assertEquals("The daemon only writes -file within the working directory, not ../outside.md\n", response.output);
+
+			// it can't watch, since the request would never finish
+			response = run(tokenDir, "-watch", "-file", "test.md");
+			Assert.assertEquals(1, response.exitCode);
+			Assert.assertEquals("The daemon can't -watch, run the console instead.\n", response.output);
+
+			// and it only listens to clients which know its token
+			File wrongTokenDir = folder.newFolder("wrong");
+			Files.write(FreshMarkDaemon.tokenFile(wrongTokenDir, daemon.port()).toPath(), "wrong".getBytes(StandardCharsets.UTF_8));
+			response = run(wrongTokenDir, "-file", "test.md");
+			Assert.assertEquals(1, response.exitCode);
+			Assert.assertEquals("Invalid daemon token.\n", response.output);
+
+			// and it can be stopped remotely
+			Assert.assertEquals(0, FreshMarkClient.run(daemon.port(), tokenDir, folder.getRoot(), new String[]{FreshMarkDaemon.STOP}, System.err));
+			thread.join(10_000);
+			Assert.assertFalse(thread.isAlive());
+		}
+		// and its token is gone once it's closed
+		Assert.assertArrayEquals(new String[0], tokenDir.list());
+	}
+
+	/** The port of the daemon under test. */
+	private int port;
+
+	/** Runs the client from the temporary folder against the daemon under test. */
+	private Response run(File tokenDir, String... args) {
+		Response response = new Response();
+		response.output = StringPrinter.buildString(printer -> {
+			try {
+				response.exitCode = FreshMarkClient.run(port, tokenDir, folder.getRoot(), args, printer.toPrintStream());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		return response;
+	}
+
+	/** The output and exit code of a single client run. */
+	static class Response {
+		String output;
+		int exitCode;
+	}
+}
@@ -15,16 +15,28 @@
  */
 package com.diffplug.freshmark;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.diffplug.common.base.Errors;
+
 public class FreshMarkTest {
 	@Test
 	public void testPrefixDelimReplacement() {
@@ -34,21 +46,311 @@ public class FreshMarkTest {
 		Assert.assertEquals(after, afterActual);
 	}
 
+	@Test
+	public void testPrefixDelimReplacementEdgeCases() {
+		// prefix without a delimiter after it is left alone
+		Assert.assertEquals("a/1/b/2", FreshMark.prefixDelimiterReplace("a/1/b/2", "b/", "/x", "R"));
+		Assert.assertEquals("a/R/b/R/", FreshMark.prefixDelimiterReplace("a/1/b/2/", "/", "/", "R"));
+		// no match returns the input as-is
+		String input = "no match here";
+		Assert.assertSame(input, FreshMark.prefixDelimiterReplace(input, "x", "y", "R"));
+		// empty prefix or delimiter behaves like the regex always has
+		Assert.assertEquals("R/R/b", FreshMark.prefixDelimiterReplace("1/a2/b", "", "/", "R"));
+		Assert.assertEquals("a/Rb/Rc", FreshMark.prefixDelimiterReplace("a/b/c", "/", "", "R"));
+	}
+
 	@Test
 	public void testFull() throws ScriptException {
 		String before = TestResource.getTestResource("full_before.txt");
 		String after = TestResource.getTestResource("full_after.txt");
 
+		Map<String, String> props = fullProps();
+		List<String> warnings = new ArrayList<>();
+		CommentScript freshmark = new FreshMark(props, warnings::add);
+		String afterActual = freshmark.compile(before);
+		Assert.assertEquals(after, afterActual);
+		Assert.assertTrue(warnings.isEmpty());
+	}
+
+	/** The properties which turn full_before.txt into full_after.txt. */
+	static Map<String, String> fullProps() {
 		Map<String, String> props = new HashMap<>();
 		props.put("stable", "3.2.0");
 		props.put("version", "3.3.0-SNAPSHOT");
 		props.put("group", "com.diffplug.durian");
 		props.put("name", "durian");
 		props.put("org", "diffplug");
-		List<String> warnings = new ArrayList<>();
-		CommentScript freshmark = new FreshMark(props, warnings::add);
-		String afterActual = freshmark.compile(before);
-		Assert.assertEquals(after, afterActual);
-		Assert.assertTrue(warnings.isEmpty());
+		return props;
+	}
+
+	@Test
+	public void testFullStreaming() throws ScriptException, IOException {
+		String before = TestResource.getTestResource("full_before.txt");
+		String after = TestResource.getTestResource("full_after.txt");
+		Map<String, String> props = fullProps();
+		StringWriter output = new StringWriter();
+		new FreshMark(props, warning -> {}).compile(new StringReader(before), output);
+		Assert.assertEquals(after, output.toString());
+	}
+
+	@Test
+	public void testScriptErrorLineStreaming() throws IOException {
+		String before = TestResource.getTestResource("full_before.txt");
+		FreshMark freshmark = new FreshMark(new HashMap<>(), warning -> {});
+		try {
+			freshmark.compile(new StringReader(before), new StringWriter());
+			Assert.fail("Expected an error");
+		} catch (ScriptException e) {
+			Assert.assertEquals(24, e.getLineNumber());
+		}
+	}
+
+	@Test
+	public void testScriptErrorLineStreamingLargeSection() throws IOException {
+		// the section's input spans many reads, so the chunk which errors are relative to was read long ago
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 20000; ++i) {
+			input.append("line " + i + "\n");
+		}
+		Assert.assertTrue(input.length() > 64 * 1024);
+		String before = "Some text\n\n<!---freshmark big\noutput = bogus;\n-->\n" + input + "<!---freshmark /big -->\n";
+		FreshMark freshmark = new FreshMark(new HashMap<>(), warning -> {});
+		int expected;
+		try {
+			freshmark.compile(before);
+			Assert.fail("Expected an error");
+			return;
+		} catch (ScriptException e) {
+			expected = e.getLineNumber();
+		}
+		Assert.assertEquals(4, expected);
+		try {
+			freshmark.compile(new StringReader(before), new StringWriter());
+			Assert.fail("Expected an error");
+		} catch (ScriptException e) {
+			Assert.assertEquals(expected, e.getLineNumber());
+		}
+	}
+
+	@Test
+	public void testParallelSections() throws ScriptException {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Map<String, String> props = fullProps();
+			FreshMark freshmark = new FreshMark(props, warning -> {});
+			String before = TestResource.getTestResource("full_before.txt");
+			Assert.assertEquals(TestResource.getTestResource("full_after.txt"), freshmark.compile(before, freshmark, null, executor));
+			// errors are reported on the same line as when the sections are compiled in order
+			FreshMark noProps = new FreshMark(new HashMap<>(), warning -> {});
+			try {
+				noProps.compile(before, noProps, null, executor);
+				Assert.fail("Expected an error");
+			} catch (ScriptException e) {
+				Assert.assertEquals(24, e.getLineNumber());
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testParsedDocument() throws ScriptException {
+		Map<String, String> props = fullProps();
+		FreshMark freshmark = new FreshMark(props, warning -> {});
+		ParsedDocument document = freshmark.parse(TestResource.getTestResource("full_before.txt"));
+		Assert.assertEquals(TestResource.getTestResource("full_after.txt"), freshmark.compile(document));
+		// the same document can be compiled with other properties, and errors are on the same line as the raw input
+		FreshMark noProps = new FreshMark(new HashMap<>(), warning -> {});
+		try {
+			noProps.compile(document);
+			Assert.fail("Expected an error");
+		} catch (ScriptException e) {
+			Assert.assertEquals(24, e.getLineNumber());
+		}
+	}
+
+	@Test
+	public void testCompileVariants() throws ScriptException {
+		String document = "<!---freshmark version\noutput = 'v' + version;\n-->\n<!---freshmark /version -->\n" +
+				"<!---freshmark name\noutput = '{{name}} {{missing}}';\n-->\n<!---freshmark /name -->\n";
+		Map<String, Map<String, String>> variants = new LinkedHashMap<>();
+		for (String version : Arrays.asList("1.0", "2.0")) {
+			Map<String, String> props = new HashMap<>();
+			props.put("name", "durian");
+			props.put("version", version);
+			variants.put(version, props);
+		}
+		Map<String, FreshMark.Result> results = FreshMark.compileVariants(document, variants);
+		Assert.assertEquals(Arrays.asList("1.0", "2.0"), new ArrayList<>(results.keySet()));
+		variants.forEach((version, props) -> {
+			FreshMark.Result result = results.get(version);
+			Assert.assertTrue(result.isSuccess());
+			Assert.assertEquals(Errors.rethrow().get(() -> new FreshMark(props, warning -> {}).compile(document)), result.output());
+			Assert.assertTrue(result.output().contains("v" + version));
+			// the name section is only compiled once, but every variant gets its warnings
+			Assert.assertEquals(Arrays.asList("Unknown key 'missing'"), result.warnings());
+		});
+	}
+
+	@Test
+	public void testCompileVariantsShareEngines() {
+		// sections which need an engine, and read a property which varies (one of which hides nashorn's org package)
+		String document = "<!---freshmark version\noutput = [version].join('').trim();\n-->\n<!---freshmark /version -->\n" +
+				"<!---freshmark org\noutput = [org].join('').trim();\n-->\n<!---freshmark /org -->\n";
+		Map<String, Map<String, String>> variants = new LinkedHashMap<>();
+		for (String version : Arrays.asList("1.0", "2.0", "3.0")) {
+			Map<String, String> props = new HashMap<>();
+			props.put("version", version);
+			props.put("org", "org" + version);
+			variants.put(version, props);
+		}
+		AtomicInteger enginesBuilt = new AtomicInteger();
+		Map<String, FreshMark.Result> results = FreshMark.compileVariants(document, variants, values -> {
+			enginesBuilt.incrementAndGet();
+			return JavaScript.language().initializeEngine(values);
+		});
+		variants.forEach((version, props) -> {
+			FreshMark.Result result = results.get(version);
+			Assert.assertEquals(Errors.rethrow().get(() -> new FreshMark(props, warning -> {}).compile(document)), result.output());
+			Assert.assertTrue(result.output().contains("\n" + version + "\n"));
+			Assert.assertTrue(result.output().contains("\norg" + version + "\n"));
+		});
+		// every variant borrowed the same engine
+		Assert.assertEquals(1, enginesBuilt.get());
+	}
+
+	@Test
+	public void testRecompile() throws ScriptException {
+		String document = "<!---freshmark version\noutput = 'v' + version;\n-->\n<!---freshmark /version -->\n" +
+				"<!---freshmark stable\noutput = 'v{{stable}}';\n-->\n<!---freshmark /stable -->\n" +
+				"<!---freshmark grow\noutput = input + 'x\\n';\n-->\n<!---freshmark /grow -->\n";
+		Map<String, String> props = new HashMap<>();
+		props.put("version", "1.0");
+		props.put("stable", "0.9");
+		String compiled = new FreshMark(props, warning -> {}).compile(document);
+		props.put("version", "2.0");
+		props.put("stable", "1.0");
+		FreshMark freshmark = new FreshMark(props, warning -> {});
+		// only the sections which read a changed property are compiled again
+		Assert.assertEquals(compiled.replace("v1.0", "v2.0"), freshmark.recompile(compiled, Arrays.asList("version")));
+		Assert.assertEquals(compiled.replace("v0.9", "v1.0"), freshmark.recompile(compiled, Arrays.asList("stable")));
+		Assert.assertEquals(compiled, freshmark.recompile(compiled, Arrays.asList("unused")));
+	}
+
+	@Test
+	public void testEngineNamed() throws ScriptException {
+		Map<String, String> props = new HashMap<>();
+		props.put("stable", "3.2.0");
+		FreshMark freshmark = new FreshMark(props, warning -> {}, JavaScript.engineNamed("nashorn"));
+		// a script which the built-in interpreter can't handle, so that it runs on the engine
+		Assert.assertEquals("[3.2.0](a)", freshmark.compileSection("section", "output = link(stable, input.trim())", " a "));
+		try {
+			new FreshMark(props, warning -> {}, JavaScript.engineNamed("nonexistent")).compileSection("section", "output = input.trim()", "");
+			Assert.fail("Expected an error");
+		} catch (RuntimeException e) {
+			Assert.assertEquals("No script engine named 'nonexistent'", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void testPropertiesAreBoundLazily() throws ScriptException {
+		Map<String, String> props = new HashMap<>();
+		props.put("stable", "3.2.0");
+		props.put("not.an.identifier", "x");
+		props.put("var", "reserved");
+		props.put("link", "shadowed by the function");
+		props.put("org", "shadows nashorn's org package");
+		FreshMark freshmark = new FreshMark(props, warning -> {});
+		ScriptEngine engine = freshmark.setupScriptEngine("section");
+		// the properties aren't declared in the engine, they're looked up when they're used
+		Assert.assertFalse(engine.getBindings(ScriptContext.ENGINE_SCOPE).containsKey("stable"));
+		Assert.assertEquals("3.2.0", engine.eval("stable"));
+		Assert.assertEquals("undefined", engine.eval("typeof this['not.an.identifier']"));
+		Assert.assertEquals("[a](b)", engine.eval("link('a', 'b')"));
+		Assert.assertEquals("shadows nashorn's org package", engine.eval("org"));
+		// and a section which runs on an engine sees them too
+		Assert.assertEquals("[3.2.0](url)", freshmark.compileSection("section", "output = link(stable, input.trim())", "url"));
+	}
+
+	@Test
+	public void testSimpleScriptsDontNeedAnEngine() throws ScriptException {
+		FreshMark freshmark = new FreshMark(new HashMap<>(), warning -> {}, values -> {
+			throw new AssertionError("An engine shouldn't have been needed");
+		});
+		Assert.assertEquals("[a](b)", freshmark.compileSection("section", "output = link(input, 'b')", "a"));
+	}
+
+	@Test
+	public void testGlobalsDontLeakBetweenSections() throws ScriptException {
+		Map<String, String> props = new HashMap<>();
+		props.put("version", "1");
+		FreshMark freshmark = new FreshMark(props, warning -> {});
+		// both sections need an engine, and the setter's engine would be the one which the reader gets
+		String document = "<!---freshmark setter\nversion = 'x'; output = input.trim();\n-->\nset\n<!---freshmark /setter -->\n" +
+				"<!---freshmark reader\noutput = ['v' + version].join('').trim();\n-->\n<!---freshmark /reader -->\n";
+		Assert.assertEquals("<!---freshmark setter\nversion = 'x'; output = input.trim();\n-->\nset\n<!---freshmark /setter -->\n" +
+				"<!---freshmark reader\noutput = ['v' + version].join('').trim();\n-->\nv1\n<!---freshmark /reader -->\n", freshmark.compile(document));
+		// an engine which a script left alone is reused
+		ScriptEngine engine = freshmark.setupScriptEngine("section");
+		freshmark.releaseScriptEngine(engine);
+		Assert.assertEquals("a", freshmark.compileSection("a", "output = input.trim();", " a "));
+		Assert.assertSame(engine, freshmark.setupScriptEngine("section"));
+	}
+
+	@Test
+	public void testCompileAll() {
+		Map<String, String> props = new HashMap<>();
+		props.put("stable", "3.2.0");
+		List<String> streamWarnings = new ArrayList<>();
+		FreshMark freshmark = new FreshMark(props, streamWarnings::add);
+
+		Map<String, String> documents = new LinkedHashMap<>();
+		documents.put("good", "<!---freshmark s\noutput = '{{stable}}'\n-->\n<!---freshmark /s -->\n");
+		documents.put("warns", "<!---freshmark s\noutput = '{{missing}}'\n-->\n<!---freshmark /s -->\n");
+		documents.put("broken", TestResource.getTestResource("mismatched.txt"));
+		documents.put("plain", "no sections");
+		Map<String, FreshMark.Result> results = freshmark.compileAll(documents);
+		Assert.assertEquals(new ArrayList<>(documents.keySet()), new ArrayList<>(results.keySet()));
+
+		FreshMark.Result good = results.get("good");
+		Assert.assertTrue(good.isSuccess());
+		Assert.assertEquals("<!---freshmark s\noutput = '{{stable}}'\n-->\n3.2.0\n<!---freshmark /s -->\n", good.output());
+		Assert.assertEquals(Arrays.asList(), good.warnings());
+
+		FreshMark.Result warns = results.get("warns");
+		Assert.assertTrue(warns.isSuccess());
+		Assert.assertEquals(Arrays.asList("Unknown key 'missing'"), warns.warnings());
+
+		FreshMark.Result broken = results.get("broken");
+		Assert.assertFalse(broken.isSuccess());
+		Assert.assertNull(broken.output());
+		Assert.assertEquals("Error on line 7: Expecting '/simple'", broken.error().getMessage());
+
+		Assert.assertEquals("no sections", results.get("plain").output());
+		// batch warnings don't go to the stream
+		Assert.assertEquals(Arrays.asList(), streamWarnings);
+	}
+
+	@Test
+	public void testEngineIsReused() throws ScriptException {
+		FreshMark freshmark = new FreshMark(new HashMap<>(), warning -> {});
+		ScriptEngine first = freshmark.setupScriptEngine("a");
+		// while the first engine is in use, we get a new one
+		ScriptEngine second = freshmark.setupScriptEngine("b");
+		Assert.assertNotSame(first, second);
+		// once it's released, it gets reused
+		freshmark.releaseScriptEngine(second);
+		freshmark.releaseScriptEngine(first);
+		Assert.assertSame(first, freshmark.setupScriptEngine("c"));
+		Assert.assertSame(second, freshmark.setupScriptEngine("d"));
+		freshmark.releaseScriptEngine(first);
+		// output from a previous section must not leak into the next one
+		Assert.assertEquals("a", freshmark.compileSection("a", "output = input.trim();", "a"));
+		try {
+			freshmark.compileSection("b", "var unused = input;", "b");
+			Assert.fail("Expected an error");
+		} catch (RuntimeException e) {
+			// expected
+		}
 	}
 }
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.diffplug.jscriptbox.ArityN;
+
+public class JavaScriptTest {
+	@Test
+	public void testEngineNamed() throws ScriptException {
+		Map<String, Object> values = new HashMap<>();
+		values.put("name", "durian");
+		values.put("zero", (ArityN.Func0<String>) () -> "0");
+		values.put("two", (ArityN.Func2<String, String, String>) (a, b) -> a + b);
+		values.put("four", (ArityN.Func4<String, String, String, String, String>) (a, b, c, d) -> a + b + c + d);
+		// every engine can call java methods, so nashorn exercises the same wrappers as GraalJS and Rhino
+		ScriptEngine engine = JavaScript.engineNamed("nashorn").initializeEngine(values);
+		Assert.assertEquals("durian", engine.eval("name"));
+		Assert.assertEquals("0", engine.eval("zero()"));
+		Assert.assertEquals("ab", engine.eval("two('a', 'b')"));
+		Assert.assertEquals("abcd", engine.eval("four('a', 'b', 'c', 'd')"));
+		Assert.assertEquals("function", engine.eval("typeof two"));
+	}
+
+	@Test
+	public void testLanguageIsResolvedOnce() {
+		Assert.assertSame(JavaScript.language(), JavaScript.language());
+	}
+}
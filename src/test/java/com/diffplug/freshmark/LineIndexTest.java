@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LineIndexTest {
+	@Test
+	public void testEmpty() {
+		LineIndex index = LineIndex.of("");
+		Assert.assertEquals(1, index.lineCount());
+		Assert.assertEquals(1, index.line(0));
+		Assert.assertEquals(1, index.column(0));
+	}
+
+	@Test
+	public void testLinesAndColumns() {
+		String text = "ab\ncde\n\nf";
+		LineIndex index = LineIndex.of(text);
+		Assert.assertEquals(4, index.lineCount());
+		for (int i = 0; i <= text.length(); ++i) {
+			String prefix = text.substring(0, i);
+			int expectedLine = 1 + (int) prefix.chars().filter(c -> c == '\n').count();
+			int expectedColumn = i - (prefix.lastIndexOf('\n') + 1) + 1;
+			Assert.assertEquals(expectedLine, index.line(i));
+			Assert.assertEquals(expectedColumn, index.column(i));
+		}
+		Assert.assertEquals(3, index.lineStart(2));
+		Assert.assertEquals(8, index.lineStart(4));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testOutOfBounds() {
+		LineIndex.of("abc").line(4);
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MemoizingSectionCompilerTest {
+	@Test
+	public void testMemoization() {
+		List<String> compiled = new ArrayList<>();
+		MemoizingSectionCompiler memoized = new MemoizingSectionCompiler((section, script, input) -> {
+			compiled.add(section);
+			return input.toUpperCase();
+		}, 2);
+		Assert.assertEquals("A", memoized.compileSection("a", "script", "a"));
+		Assert.assertEquals("A", memoized.compileSection("a", "script", "a"));
+		// any difference in the section, script, or input is a miss
+		Assert.assertEquals("A", memoized.compileSection("b", "script", "a"));
+		Assert.assertEquals("A", memoized.compileSection("a", "other", "a"));
+		Assert.assertEquals("B", memoized.compileSection("a", "script", "b"));
+		Assert.assertEquals(1, memoized.hits());
+		Assert.assertEquals(4, memoized.misses());
+		// the first "a" was evicted
+		Assert.assertEquals("A", memoized.compileSection("a", "script", "a"));
+		Assert.assertEquals(5, compiled.size());
+	}
+
+	@Test
+	public void testNullInput() throws Exception {
+		List<String> compiled = new ArrayList<>();
+		MemoizingSectionCompiler memoized = new MemoizingSectionCompiler((section, script, input) -> {
+			compiled.add(section);
+			return "x";
+		}, 16);
+		// adjacent tags pass a null input
+		String doc = "<!---freshmark s\noutput = 'x';\n--><!---freshmark /s -->";
+		String expected = ParserIntronExonTest.freshmarkParser.compile(doc, memoized);
+		Assert.assertEquals(expected, ParserIntronExonTest.freshmarkParser.compile(doc, memoized));
+		Assert.assertEquals(1, compiled.size());
+		Assert.assertEquals(1, memoized.hits());
+	}
+
+	@Test
+	public void testParserUsesMemoizedOutput() throws Exception {
+		List<String> compiled = new ArrayList<>();
+		MemoizingSectionCompiler memoized = new MemoizingSectionCompiler((section, script, input) -> {
+			compiled.add(section);
+			return input;
+		}, 16);
+		String section = "<!---freshmark same\noutput = input\n-->\nabc\n<!---freshmark /same -->\n";
+		String doc = section + section + section;
+		Assert.assertEquals(doc, ParserIntronExonTest.freshmarkParser.compile(doc, memoized));
+		Assert.assertEquals(1, compiled.size());
+		Assert.assertEquals(2, memoized.hits());
+	}
+}
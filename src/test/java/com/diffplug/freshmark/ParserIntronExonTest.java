@@ -15,8 +15,24 @@
  */
 package com.diffplug.freshmark;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
 
 import javax.script.ScriptException;
 
@@ -43,14 +59,40 @@ public class ParserIntronExonTest {
 
 	static void testCaseBodyAndTags(String file) throws ScriptException {
 		String raw = TestResource.getTestResource(file);
+		Assert.assertEquals(raw, bodyAndTags(freshmarkParser, raw));
+		// the literal scanner must find exactly the same chunks as the equivalent regex
+		Assert.assertEquals(chunks(freshmarkParser, raw), chunks(regexParser, raw));
+	}
+
+	static final Parser regexParser = new ParserIntronExon("<!---freshmark", "-->", Pattern.quote("<!---freshmark") + "(.*?)" + Pattern.quote("-->"));
+
+	static String bodyAndTags(Parser parser, String raw) throws ScriptException {
 		StringBuilder result = new StringBuilder(raw.length());
-		freshmarkParser.bodyAndTags(raw, (startIdx, body) -> {
+		parser.bodyAndTags(raw, (startIdx, body) -> {
 			result.append(body);
 		}, (startIdx, tag) -> {
 			result.append("<!---freshmark");
 			result.append(tag);
 			result.append("-->");
 		});
+		return result.toString();
+	}
+
+	static List<String> chunks(Parser parser, String raw) throws ScriptException {
+		List<String> chunks = new ArrayList<>();
+		parser.bodyAndTags(raw, (startIdx, body) -> {
+			chunks.add("body " + startIdx + " " + body);
+		}, (startIdx, tag) -> {
+			chunks.add("tag " + startIdx + " " + tag);
+		});
+		return chunks;
+	}
+
+	@Test
+	public void testBodyAndTagsUnterminated() throws ScriptException {
+		String raw = "a<!---freshmark b-->c<!---freshmark d";
+		Assert.assertEquals(Arrays.asList("body 0 a", "tag 15  b", "body 20 c<!---freshmark d"), chunks(freshmarkParser, raw));
+		Assert.assertEquals(chunks(regexParser, raw), chunks(freshmarkParser, raw));
 	}
 
 	@Test
@@ -58,6 +100,27 @@ public class ParserIntronExonTest {
 		// no change reguired == no problem!
 		testCaseCompileSuccess("empty.txt", TestResource.getTestResource("empty.txt"));
 		testCaseCompileSuccess("nocomment.txt", TestResource.getTestResource("nocomment.txt"));
+		// which is cheap to detect, because the input is returned as-is
+		String raw = TestResource.getTestResource("nocomment.txt");
+		Parser.SectionCompiler unreachable = (section, program, in) -> {
+			throw new AssertionError();
+		};
+		Assert.assertSame(raw, freshmarkParser.compile(raw, unreachable));
+		Assert.assertSame(raw, freshmarkParser.compile(raw, unreachable, null, ForkJoinPool.commonPool()));
+	}
+
+	@Test
+	public void testChunksAsStrings() throws ScriptException {
+		// a parser which was written before chunks could be views still works
+		Parser copying = new ParserIntronExon("<!---freshmark", "-->") {
+			@Override
+			protected void bodyAndTags(String rawInput, ChunkHandler body, ChunkHandler tag) throws ScriptException {
+				super.bodyAndTags(rawInput, (start, content) -> body.handle(start, content.toString()), (start, content) -> tag.handle(start, content.toString()));
+			}
+		};
+		Parser.SectionCompiler compiler = (section, script, input) -> section + input;
+		String raw = TestResource.getTestResource("simple.txt");
+		Assert.assertEquals(freshmarkParser.compile(raw, compiler), copying.compile(raw, compiler));
 	}
 
 	@Test
@@ -67,10 +130,39 @@ public class ParserIntronExonTest {
 
 	static void testCaseCompileSuccess(String file, String expected) throws ScriptException {
 		String raw = TestResource.getTestResource(file);
-		String result = freshmarkParser.compile(raw, (section, program, in) -> {
+		Parser.SectionCompiler compiler = (section, program, in) -> {
 			return "section: " + section + "\nprogram: " + program + "input: " + in;
-		});
-		Assert.assertEquals(expected, result);
+		};
+		Assert.assertEquals(expected, freshmarkParser.compile(raw, compiler));
+		Assert.assertEquals(expected, freshmarkParser.compile(raw, compiler, null, ForkJoinPool.commonPool()));
+		Assert.assertEquals(expected, compileStreaming(freshmarkParser, raw, compiler));
+		Assert.assertEquals(expected, compileStreaming(regexParser, raw, compiler));
+		Assert.assertEquals(expected, freshmarkParser.compile(freshmarkParser.parse(raw), compiler));
+	}
+
+	/** Compiles using the streaming API, with a reader which returns only one char at a time to exercise every boundary. */
+	static String compileStreaming(Parser parser, String raw, Parser.SectionCompiler compiler) throws ScriptException {
+		Reader oneCharAtATime = new StringReader(raw) {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, 1));
+			}
+		};
+		StringWriter writer = new StringWriter();
+		try {
+			parser.compile(oneCharAtATime, writer, compiler);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return writer.toString();
+	}
+
+	@Test
+	public void testCompileStreamingUnterminated() throws ScriptException {
+		Parser.SectionCompiler upper = (section, program, in) -> in.toUpperCase(Locale.ROOT);
+		for (String raw : Arrays.asList("", "a<!---freshmark", "a<!---freshmark b", "a<!---fresh", "a-->b", "<!---freshmark s\nscript-->x<!---freshmark /s -->y<!---freshmark z")) {
+			Assert.assertEquals(freshmarkParser.compile(raw, upper), compileStreaming(freshmarkParser, raw, upper));
+		}
 	}
 
 	@Test
@@ -97,5 +189,105 @@ public class ParserIntronExonTest {
 		} catch (Throwable e) {
 			Assert.assertEquals(expected, e.getMessage());
 		}
+		try {
+			freshmarkParser.compile(raw, (section, program, in) -> in, null, ForkJoinPool.commonPool());
+			Assert.fail("Expected an error");
+		} catch (Throwable e) {
+			Assert.assertEquals(expected, e.getMessage());
+		}
+		try {
+			compileStreaming(freshmarkParser, raw, (section, program, in) -> in);
+			Assert.fail("Expected an error");
+		} catch (Throwable e) {
+			Assert.assertEquals(expected, e.getMessage());
+		}
+		try {
+			freshmarkParser.parse(raw);
+			Assert.fail("Expected an error");
+		} catch (Throwable e) {
+			Assert.assertEquals(expected, e.getMessage());
+		}
+	}
+
+	@Test
+	public void testParse() throws Exception {
+		String raw = "a\n<!---freshmark s\nscript\n-->\ninput\n<!---freshmark /s -->\n" +
+				"<!---freshmark t\nscript-->\n<!---freshmark /t -->b";
+		ParsedDocument document = freshmarkParser.parse(raw);
+		Assert.assertEquals(5, document.nodes().size());
+		Assert.assertEquals(2, document.sections().size());
+		ParsedDocument.Body first = (ParsedDocument.Body) document.nodes().get(0);
+		Assert.assertEquals("a\n", first.text());
+		Assert.assertEquals(0, first.start());
+		ParsedDocument.Section section = document.sections().get(0);
+		Assert.assertEquals("s", section.name());
+		Assert.assertEquals("script\n", section.script());
+		Assert.assertEquals("\ninput\n", section.input());
+		Assert.assertEquals("\ninput\n", raw.substring(section.inputStart(), section.inputEnd()));
+		Assert.assertEquals(" s\nscript\n-->\ninput\n<!---freshmark /s ", raw.substring(section.start(), section.end()));
+		Assert.assertEquals("\n", document.sections().get(1).input());
+		Assert.assertNull(freshmarkParser.parse("<!---freshmark empty\nscript--><!---freshmark /empty -->").sections().get(0).input());
+		Assert.assertEquals("b", ((ParsedDocument.Body) document.nodes().get(4)).text());
+
+		// a parsed document can be cached as bytes, and compiled many times
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(document);
+		}
+		ParsedDocument deserialized;
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+			deserialized = (ParsedDocument) in.readObject();
+		}
+		for (String version : Arrays.asList("1.0", "2.0")) {
+			Parser.SectionCompiler compiler = (name, program, in) -> version;
+			Assert.assertEquals(freshmarkParser.compile(raw, compiler), freshmarkParser.compile(deserialized, compiler));
+		}
+		// a document without sections compiles to itself
+		String noTags = TestResource.getTestResource("nocomment.txt");
+		Assert.assertSame(noTags, freshmarkParser.compile(freshmarkParser.parse(noTags), (name, program, in) -> {
+			throw new AssertionError();
+		}));
+	}
+
+	@Test
+	public void testCompileParallel() throws ScriptException {
+		StringBuilder raw = new StringBuilder();
+		for (int i = 0; i < 64; ++i) {
+			raw.append("body " + i + "\n<!---freshmark s" + i + "\nscript-->\ninput " + i + "\n<!---freshmark /s" + i + " -->\n");
+		}
+		Parser.SectionCompiler upper = (section, program, in) -> section + in.toUpperCase(Locale.ROOT);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			Assert.assertEquals(freshmarkParser.compile(raw.toString(), upper), freshmarkParser.compile(raw.toString(), upper, null, executor));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testCompileParallelReportsFirstError() throws ScriptException {
+		String raw = "<!---freshmark a\nscript-->\n<!---freshmark /a -->\n" +
+				"<!---freshmark b\nscript-->\n<!---freshmark /b -->\n" +
+				"<!---freshmark c\nscript-->\n<!---freshmark /c -->\n" +
+				"<!---freshmark d\nscript-->\n<!---freshmark /mismatched -->\n";
+		// b fails slowly, c fails fast, and then there's a parse error, but b's error is the one that's reported
+		Parser.SectionCompiler failing = (section, program, in) -> {
+			if (section.equals("b")) {
+				Errors.rethrow().run(() -> Thread.sleep(100));
+				throw new IllegalArgumentException("b failed");
+			} else if (section.equals("c")) {
+				throw new IllegalArgumentException("c failed");
+			}
+			return in;
+		};
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			freshmarkParser.compile(raw, failing, null, executor);
+			Assert.fail("Expected an error");
+		} catch (RuntimeException e) {
+			Assert.assertEquals("Error on line 6: b failed", e.getMessage());
+		} finally {
+			executor.shutdown();
+		}
 	}
 }
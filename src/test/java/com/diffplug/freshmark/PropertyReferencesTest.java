@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropertyReferencesTest {
+	private static final List<String> PROPERTIES = Arrays.asList("version", "name", "org", "some.key");
+
+	@Test
+	public void testMustacheAndWords() {
+		Assert.assertEquals(Arrays.asList("some.key", "version"), list("output = '{{some.key}}' + version;"));
+		Assert.assertEquals(Arrays.asList("name", "org"), list("output = link(name, 'https://github.com/' + org);"));
+	}
+
+	@Test
+	public void testWholeWordsOnly() {
+		Assert.assertEquals(Collections.emptyList(), list("var versions = organization + names;"));
+		Assert.assertEquals(Collections.emptyList(), list("output = 'versioned' + $name;"));
+	}
+
+	@Test
+	public void testStringsAndCommentsCount() {
+		// conservative, since a string might be evaluated
+		Assert.assertEquals(Arrays.asList("version", "name"), list("// version\noutput = eval('name');"));
+	}
+
+	private static List<String> list(String script) {
+		return Arrays.asList(PropertyReferences.of(script, PROPERTIES).toArray(new String[0]));
+	}
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.diffplug.common.base.Consumers;
+
+public class ScriptCacheTest {
+	@Test
+	public void testHitsAndMisses() throws ScriptException {
+		ScriptEngine engine = new FreshMark(new HashMap<>(), Consumers.doNothing()).setupScriptEngine("section");
+		ScriptCache cache = new ScriptCache(2);
+		Map<String, CompiledScript> scripts = cache.newEngineCache();
+		CompiledScript a = cache.get(engine, scripts, "output = 'a'");
+		Assert.assertSame(a, cache.get(engine, scripts, "output = 'a'"));
+		Assert.assertEquals(1, cache.hits());
+		Assert.assertEquals(1, cache.misses());
+		// fill it up, "a" is the least-recently used, so it gets evicted
+		cache.get(engine, scripts, "output = 'b'");
+		cache.get(engine, scripts, "output = 'c'");
+		Assert.assertEquals(2, scripts.size());
+		Assert.assertNotSame(a, cache.get(engine, scripts, "output = 'a'"));
+		Assert.assertEquals(1, cache.hits());
+		Assert.assertEquals(4, cache.misses());
+	}
+
+	@Test
+	public void testRepeatedSectionsHitTheCache() throws ScriptException {
+		FreshMark freshmark = new FreshMark(new HashMap<>(), Consumers.doNothing());
+		String section = "<!---freshmark same\noutput = input.toUpperCase()\n-->\nabc\n<!---freshmark /same -->\n";
+		String compiled = freshmark.compile(section + section + section);
+		Assert.assertEquals(3, compiled.split("ABC").length - 1);
+		Assert.assertEquals(2, freshmark.scriptCache().hits());
+		Assert.assertEquals(1, freshmark.scriptCache().misses());
+	}
+}
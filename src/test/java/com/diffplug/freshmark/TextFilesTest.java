@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 DiffPlug
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.diffplug.freshmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TextFilesTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testReadNormalizesNewlines() throws IOException {
+		byte[] raw = "a\r\nb\rc\n\u00e9\r\n\r".getBytes(StandardCharsets.UTF_8);
+		File file = folder.newFile("test.md");
+		Files.write(file.toPath(), raw);
+
+		ByteBuffer bytes = TextFiles.readBytes(file.toPath());
+		Assert.assertEquals(ByteBuffer.wrap(raw), bytes);
+		Assert.assertEquals("a\nb\rc\n\u00e9\n\r", TextFiles.decode(bytes, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testReadEmpty() throws IOException {
+		File file = folder.newFile("empty.md");
+		ByteBuffer bytes = TextFiles.readBytes(file.toPath());
+		Assert.assertEquals(0, bytes.remaining());
+		Assert.assertEquals("", TextFiles.decode(bytes, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testEncode() throws IOException {
+		testEncode("", "\r\n");
+		testEncode("\n", "\r\n");
+		testEncode("a\nb", "\r\n");
+		testEncode("\u00e9\n\n\ud83d\ude00\n", "\r\n");
+		testEncode("\u00e9\n\n\ud83d\ude00\n", "\n");
+	}
+
+	private void testEncode(String text, String lineEnding) throws IOException {
+		byte[] expected = text.replace("\n", lineEnding).getBytes(StandardCharsets.UTF_8);
+		Assert.assertEquals(ByteBuffer.wrap(expected), TextFiles.encode(text, lineEnding, StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testWriteAtomically() throws IOException {
+		File file = folder.newFile("test.md");
+		Files.write(file.toPath(), "old".getBytes(StandardCharsets.UTF_8));
+		TextFiles.writeAtomically(file.toPath(), ByteBuffer.wrap("new".getBytes(StandardCharsets.UTF_8)));
+		Assert.assertEquals("new", new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+		Assert.assertEquals(1, folder.getRoot().list().length);
+	}
+
+	@Test
+	public void testWriteAtomicallyThroughSymlink() throws IOException {
+		File real = folder.newFolder("real");
+		Path target = new File(real, "test.md").toPath();
+		Files.write(target, "old".getBytes(StandardCharsets.UTF_8));
+		Path link = folder.getRoot().toPath().resolve("link.md");
+		try {
+			Files.createSymbolicLink(link, target);
+		} catch (UnsupportedOperationException | IOException e) {
+			Assume.assumeNoException(e);
+		}
+		TextFiles.writeAtomically(link, ByteBuffer.wrap("new".getBytes(StandardCharsets.UTF_8)));
+		// the link is still a link, and the file it points to has been replaced
+		Assert.assertTrue(Files.isSymbolicLink(link));
+		Assert.assertEquals("new", new String(Files.readAllBytes(target), StandardCharsets.UTF_8));
+		Assert.assertEquals(1, real.list().length);
+	}
+}